@@ -2,15 +2,14 @@ package bt;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Function;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import jnibwapi.types.*;
 import jnibwapi.types.OrderType.OrderTypes;
 import jnibwapi.types.UnitCommandType.UnitCommandTypes;
 import jnibwapi.types.UnitType.UnitTypes;
 import scdb.OfflineJNIBWAPI;
-import util.Util;
 
 public class BehaviourTree {
 	private static final Logger LOGGER = Logger.getLogger(BehaviourTree.class.getName());
@@ -35,6 +34,10 @@ public class BehaviourTree {
 	
 	private Set<String> replaysProcessed = new HashSet<>();
 	private BtNode root;
+	/** Nodes have dense ids 0 to numIds - 1. Some may no longer be in use until compacted. */
+	private transient int numIds = 0;
+	/** Shares identical sequences, or null if not interning */
+	private transient NodeInterner interner = null;
 	
 	public BehaviourTree() {
 		this(new BtSelNode());
@@ -42,6 +45,7 @@ public class BehaviourTree {
 	
 	public BehaviourTree(BtNode root) {
 		this.root = root;
+		compactIds();
 	}
 	
 	public Set<String> getProcessed() {
@@ -52,12 +56,286 @@ public class BehaviourTree {
 		replaysProcessed.add(replayName);
 	}
 	
+	/**
+	 * Share identical sequences added from now on. See {@link NodeInterner}. Not saved with the
+	 * tree.
+	 */
+	public void setInterning(boolean interning) {
+		interner = interning ? new NodeInterner() : null;
+	}
+	
+	/** Add a sequence of nodes under the root. Can be called from several threads at once. */
 	public void addSequence(List<BtNode> seq) {
-		BtNode seqNode = new BtSeqNode();
+		BtSeqNode seqNode = new BtSeqNode();
+		NodeInterner interner = this.interner;
 		for (BtNode node : seq) {
 			seqNode.addChild(node);
 		}
+		if (interner != null) {
+			seqNode = interner.internSequence(seqNode);
+		}
 		root.addChild(seqNode);
+		assignId(seqNode.getMergedActual());
+		seqNode.getMergedActual().forEachChild(this::assignId);
+	}
+	
+	/**
+	 * Add a sequence of leaves to a prefix trie under the root, instead of as a separate sequence.
+	 * Each branch of the trie is a sequence of the leaves shared by every sequence through it,
+	 * ending in a selector over the ways they continue (the same shape GLAM alignment gives), or
+	 * in just leaves if only one sequence has continued past there. Leaves match if they have the
+	 * same hash and can merge, and matching leaves are merged. Selectors count the sequences down
+	 * each branch, so one that ends part way along a branch is only counted. Synchronized, so it
+	 * can be called from several threads, but the sequences are added one at a time.
+	 */
+	public synchronized void addSequenceToTrie(List<BtNode> seq, Function<BtNode, Long> hashFn) {
+		if (!(root instanceof BtSelNode)) {
+			throw new RuntimeException("Root must be a selector to build a trie, not " + root);
+		}
+		BtSelNode sel = (BtSelNode) root;
+		int from = 0;
+		while (from < seq.size()) {
+			BtNode next = seq.get(from);
+			BtSeqNode branch = null;
+			for (BtNode child : sel.getChildren()) {
+				if (child instanceof BtSeqNode && !child.getChildren().isEmpty()
+						&& leavesMatch(child.getChildren().get(0), next, hashFn)) {
+					branch = (BtSeqNode) child;
+					break;
+				}
+			}
+			if (branch == null) {
+				// Nothing shares this prefix, so the rest is a new branch
+				sel.addChild(newTrieBranch(seq.subList(from, seq.size())));
+				return;
+			}
+			List<BtNode> branchChildren = branch.getChildren();
+			int numLeaves = branchChildren.size();
+			BtNode last = branchChildren.get(numLeaves - 1).getMergedActual();
+			boolean continues = last instanceof BtSelNode;
+			if (continues) {
+				numLeaves--;
+			}
+			int common = 0;
+			while (common < numLeaves && from + common < seq.size() && leavesMatch(
+					branchChildren.get(common), seq.get(from + common), hashFn)) {
+				branchChildren.get(common).getMergedActual().merge(seq.get(from + common));
+				common++;
+			}
+			int prevCount = sel.getChildCount(branch);
+			sel.addChild(branch);
+			from += common;
+			if (common < numLeaves || !continues && from < seq.size()) {
+				// Split the branch after the common leaves, into the old and new continuations
+				BtSelNode split = new BtSelNode();
+				if (common < branchChildren.size()) {
+					split.addChild(newTrieBranch(branchChildren.subList(common,
+							branchChildren.size())), prevCount);
+				}
+				if (from < seq.size()) {
+					split.addChild(newTrieBranch(seq.subList(from, seq.size())));
+				}
+				BtSeqNode prefix = newTrieBranch(branchChildren.subList(0, common));
+				prefix.addChild(split);
+				assignId(split);
+				sel.replaceChild(branch, prefix);
+				return;
+			}
+			if (!continues) {
+				// Same as the whole branch
+				return;
+			}
+			sel = (BtSelNode) last;
+		}
+	}
+	
+	/**
+	 * Add a sequence of leaves to a tree that has already been built and aligned, by following the
+	 * branches that match it as far as possible from the root. A branch matches if all of its
+	 * leaves match the next leaves of the sequence (or for a selector at an aligned position, one
+	 * of the selector's leaves does), ending either in a selector, which is followed in turn, or
+	 * in leaves. Matched leaves are merged and each selector on the way counts the branch taken.
+	 * The remainder that doesn't match is added as a new sequence where matching stopped, so the
+	 * next GLAM alignment only needs to deal with that part. Returns the number of leaves matched.
+	 * Synchronized, so it can be called from several threads, but the sequences are routed one at
+	 * a time.
+	 */
+	public synchronized int routeSequence(List<BtNode> seq, Function<BtNode, Long> hashFn) {
+		if (!(root instanceof BtSelNode)) {
+			throw new RuntimeException("Root must be a selector to route sequences, not " + root);
+		}
+		BtSelNode sel = (BtSelNode) root;
+		int from = 0;
+		while (from < seq.size()) {
+			BtSeqNode best = null;
+			BranchMatch bestMatch = null;
+			for (BtNode child : sel.getChildren()) {
+				if (child instanceof BtSeqNode) {
+					BranchMatch m = new BranchMatch(from);
+					if (matchBranch((BtSeqNode) child, seq, hashFn, m) && m.numMatched() > 0
+							&& (bestMatch == null || m.numMatched() > bestMatch.numMatched())) {
+						best = (BtSeqNode) child;
+						bestMatch = m;
+					}
+				}
+			}
+			if (best == null) {
+				break;
+			}
+			for (int i = 0; i < bestMatch.numMatched(); i++) {
+				BtNode existing = bestMatch.existing.get(i);
+				if (existing instanceof BtSelNode) {
+					((BtSelNode) existing).addChild(seq.get(from + i));
+				} else {
+					existing.merge(seq.get(from + i));
+				}
+			}
+			sel.addChild(best);
+			from += bestMatch.numMatched();
+			if (bestMatch.next == null) {
+				if (from < seq.size()) {
+					// Continue past the end of the branch with a selector over the rest
+					BtSelNode split = new BtSelNode();
+					split.addChild(newTrieBranch(seq.subList(from, seq.size())));
+					BtSeqNode extended = newTrieBranch(best.getChildren());
+					extended.addChild(split);
+					assignId(split);
+					sel.replaceChild(best, extended);
+				}
+				return from;
+			}
+			sel = bestMatch.next;
+		}
+		if (from < seq.size()) {
+			sel.addChild(newTrieBranch(seq.subList(from, seq.size())));
+		}
+		return from;
+	}
+	
+	/** The nodes a sequence matched in one branch of the tree, see {@link #routeSequence} */
+	private static class BranchMatch {
+		/** Index in the sequence of the first leaf to match */
+		public final int from;
+		/** The leaf, or selector of leaves, each leaf of the sequence matched */
+		public final List<BtNode> existing = new ArrayList<>();
+		/** The selector the branch ended in, if any */
+		public BtSelNode next = null;
+		
+		public BranchMatch(int from) {
+			this.from = from;
+		}
+		
+		public int numMatched() {
+			return existing.size();
+		}
+	}
+	
+	/** Whether the whole branch matches the sequence, adding to the match if so. */
+	private static boolean matchBranch(BtSeqNode branch, List<BtNode> seq,
+			Function<BtNode, Long> hashFn, BranchMatch m) {
+		List<BtNode> children = branch.getChildren();
+		for (int i = 0; i < children.size(); i++) {
+			BtNode c = children.get(i).getMergedActual();
+			boolean last = i == children.size() - 1;
+			if (c instanceof BtSelNode && last) {
+				m.next = (BtSelNode) c;
+				return true;
+			} else if (c instanceof BtSeqNode) {
+				// Aligned sequence nested in a sequence
+				if (!matchBranch((BtSeqNode) c, seq, hashFn, m)) {
+					return false;
+				}
+				if (m.next != null) {
+					return last;
+				}
+				continue;
+			}
+			int pos = m.from + m.numMatched();
+			if (pos >= seq.size()) {
+				return false;
+			}
+			BtNode leaf = seq.get(pos);
+			boolean matched = false;
+			if (c instanceof BtSelNode) {
+				// Alternatives at an aligned position
+				for (BtNode alt : c.getChildren()) {
+					matched |= leavesMatch(alt, leaf, hashFn);
+				}
+			} else {
+				matched = leavesMatch(c, leaf, hashFn);
+			}
+			if (!matched) {
+				return false;
+			}
+			m.existing.add(c);
+		}
+		return true;
+	}
+	
+	private static boolean leavesMatch(BtNode existing, BtNode leaf,
+			Function<BtNode, Long> hashFn) {
+		existing = existing.getMergedActual();
+		return !(existing instanceof BtSelNode)
+				&& hashFn.apply(existing).equals(hashFn.apply(leaf))
+				&& existing.canMergeIntoOne(leaf);
+	}
+	
+	/** A sequence of the nodes, with ids assigned */
+	private BtSeqNode newTrieBranch(List<BtNode> nodes) {
+		BtSeqNode branch = new BtSeqNode();
+		for (BtNode node : nodes) {
+			assignId(branch.addChild(node));
+		}
+		assignId(branch);
+		return branch;
+	}
+	
+	/**
+	 * Add all of another tree's sequences to this one, as if they had been added with
+	 * {@link #addSequence(List)}: matching sequences are merged and selector counts summed. The
+	 * other tree shares nodes with this one afterwards, so shouldn't be used again. The other
+	 * tree's sequences are added in the order they were added to it (by id) rather than the
+	 * selector's hash order, so which children are merged into which doesn't vary between runs
+	 * that built the other tree the same way.
+	 */
+	public void addTree(BehaviourTree other) {
+		if (root instanceof BtSelNode && other.root instanceof BtSelNode) {
+			BtSelNode sel = (BtSelNode) root;
+			BtSelNode otherSel = (BtSelNode) other.root;
+			List<BtNode> children = new ArrayList<>(otherSel.getChildren());
+			children.sort(Comparator.comparingInt(BtNode::getId));
+			for (BtNode child : children) {
+				sel.addChild(child, otherSel.getChildCount(child));
+			}
+		} else {
+			root = root.merge(other.root);
+		}
+		replaysProcessed.addAll(other.replaysProcessed);
+		compactIds();
+	}
+	
+	/** Give the node the next dense id, if it doesn't have one */
+	private synchronized void assignId(BtNode node) {
+		if (node.getId() < 0) {
+			node.setId(numIds++);
+		}
+	}
+	
+	/**
+	 * Renumber all the nodes in the tree with ids 0 to n-1, dropping any ids of nodes that have
+	 * been merged away, and return n. Needed after loading a tree or changing it other than with
+	 * {@link #addSequence(List)}.
+	 */
+	public int compactIds() {
+		int[] count = {0};
+		TreeWalker.preOrder(root, n -> n.setId(count[0]++));
+		numIds = count[0];
+		return numIds;
+	}
+	
+	/** One more than the highest node id. See {@link BtNode#getId()}. */
+	public int getNumIds() {
+		return numIds;
 	}
 	
 
@@ -65,6 +343,35 @@ public class BehaviourTree {
 	public BtNode getRoot() {
 		return root;
 	}
+	
+	/**
+	 * Make every node in the tree point directly at the nodes its children were merged into,
+	 * including the root. Iterative, so safe on any depth of tree.
+	 */
+	public void resolveMerged() {
+		root = resolveMerged(root);
+	}
+	
+	/**
+	 * Make every node in the subtree point directly at the nodes its children were merged into.
+	 * Returns the node the given one was merged into (or itself).
+	 */
+	public static BtNode resolveMerged(BtNode subTree) {
+		subTree = subTree.getMergedActual();
+		Set<BtNode> seen = new HashSet<>();
+		Deque<BtNode> open = new ArrayDeque<>();
+		open.push(subTree);
+		while (!open.isEmpty()) {
+			BtNode node = open.pop();
+			if (seen.add(node)) {
+				node.resolveChildren();
+				for (BtNode child : node.getChildren()) {
+					open.push(child);
+				}
+			}
+		}
+		return subTree;
+	}
 
 	public boolean sanityCheck() {
 		if (root.getChildren().isEmpty()) {
@@ -74,45 +381,40 @@ public class BehaviourTree {
 	}
 	
 	public boolean sanityCheck(BtNode node) {
-		return sanityCheck(node, new HashSet<>());
+		return sanityCheck(node, TreeWalker.newVisitedSet());
 	}
 	
+	/** Check each node in the subtree that isn't in <code>seen</code> (and add it to seen). */
 	public boolean sanityCheck(BtNode node, Set<BtNode> seen) {
-		if (seen.add(node)) {
-			return true;
-		}
 		if (node == null) {
 			LOGGER.warning("Node was null");
 			return false;
 		}
-		if (node.getWeight() <= 0) {
-			LOGGER.warning("Node with 0 weight " + node);
-		}
-		node.checkNotMerged();
-		boolean allGood = true;
-		try {
-			for (BtNode child : node.getChildren()) {
-				allGood &= sanityCheck(child, seen);
-			}
-			if (!allGood) {
-				LOGGER.warning("Problem with child of " + node);
+		boolean[] allGood = {true};
+		TreeWalker.preOrder(node, seen, n -> {
+			if (n.getWeight() <= 0) {
+				LOGGER.warning("Node with 0 weight " + n);
 			}
-		} catch (NullPointerException e) {
-			LOGGER.warning("Null pointer getting children of " + node);
-			return false;
-		}
-		return true;
+			n.checkNotMerged();
+			n.forEachChild(child -> {
+				if (child == null) {
+					LOGGER.warning("Null child of " + n);
+					allGood[0] = false;
+				}
+			});
+		});
+		return allGood[0];
 	}
 	
 	public static List<Map<Class<?>, Integer>> nodeTypeCountsEachLevel(BtNode root, int maxDepth) {
+		// Each node is counted at the first level it appears at
 		List<Map<Class<?>, Integer>> typeCounts = new ArrayList<>();
-		Set<BtNode> seen = new HashSet<>();
-		for (Set<BtNode> nodesOnLevel : nodesEachLevel(root, maxDepth)) {
-			typeCounts.add(nodesOnLevel.stream()
-					.filter(n -> !seen.contains(n))
-					.collect(Collectors.groupingBy(n -> n.getClass(), Util.countingInt())));
-			seen.addAll(nodesOnLevel);
-		}
+		TreeWalker.levelOrder(root, maxDepth - 1, (n, depth) -> {
+			if (depth == typeCounts.size()) {
+				typeCounts.add(new HashMap<>());
+			}
+			typeCounts.get(depth).merge(n.getClass(), 1, Integer::sum);
+		});
 		return typeCounts;
 	}
 	
@@ -134,27 +436,18 @@ public class BehaviourTree {
 	}
 
 	public int countNodes() {
-		HashSet<BtNode> seen = new HashSet<>();
-		findNodesDfs(getRoot(), seen);
-		return seen.size();
+		int[] count = {0};
+		TreeWalker.preOrder(getRoot(), n -> count[0]++);
+		return count[0];
 	}
 	
 	/** DFS to find all nodes in the subTree rooted at the given node */
 	public static Set<BtNode> findNodesDfs(BtNode subTree) {
 		Set<BtNode> found = new LinkedHashSet<>();
-		findNodesDfs(subTree, found);
+		TreeWalker.preOrder(subTree, found::add);
 		return found;
 	}
 	
-	private static void findNodesDfs(BtNode subTree, Set<BtNode> found) {
-		if (!found.contains(subTree)) {
-			found.add(subTree);
-			for (BtNode child : subTree.getChildren()) {
-				findNodesDfs(child, found);
-			}
-		}
-	}
-	
 	/** DFS to find all sequence nodes in the subTree rooted at the given node */
 	public Set<BtSeqNode> findSeqNodesDfs(BtNode subTree) {
 		Set<BtSeqNode> found = new LinkedHashSet<>();
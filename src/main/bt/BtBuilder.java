@@ -5,15 +5,22 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import jnibwapi.types.RaceType.RaceTypes;
-import jnibwapi.types.UnitType;
 import scdb.*;
 import util.LogManager;
 import util.Util;
+import util.Util.Pair;
 import bt.sc.ActionBtNode;
 import bt.sc.CaseBtNode;
 import bt.sc.SimilarityMetrics;
@@ -51,6 +58,46 @@ public class BtBuilder {
 	private final String glamFoldernameBase;
 	private final String glamTxtFilename;
 	private final String glamProcessingFlagFile;
+	/** Whether to align with {@link GlamAligner} rather than waiting for an external glam2 run */
+	private final boolean glamInProcess;
+	/** glam2 style arguments for {@link GlamAligner} or glam2 */
+	private final String glamArgs;
+	/** If not empty, the glam2 program to run, rather than waiting for run-glam-continuous.sh */
+	private final String glamExecutable;
+	/** Longest to wait for each glam2 run, in minutes. 0 to wait forever. */
+	private final long glamTimeoutMinutes;
+	/** Number of annealing runs {@link GlamAligner} does at once. 0 for one per core. */
+	private final int glamThreads;
+	/** Whether {@link GlamAligner} also splits resampling between threads within each run */
+	private final boolean glamParallelColumns;
+	/** Number of worker threads reading replays from the DB when building the initial tree */
+	private final int ingestThreads;
+	/** Whether action nodes store their actions as primitive arrays to save memory */
+	private final boolean packActionNodes;
+	/** Whether the workers add sequences to the tree themselves, rather than one at a time */
+	private final boolean concurrentInsert;
+	/**
+	 * Number of separate trees the workers add sequences to, which are merged into the main tree
+	 * before it is saved. 0 or 1 to add straight to the main tree.
+	 */
+	private final int numShards;
+	/** Whether identical sequences share one node. See {@link NodeInterner}. */
+	private final boolean internNodes;
+	/** Whether to build the initial tree as a prefix trie of the action sequences */
+	private final boolean prefixTrie;
+	/** If not empty, a finished tree to add new replays to instead of building a new one */
+	private final String updateTreeFilename;
+	/**
+	 * Added to the names of the files written when updating a tree, so the updated tree and its
+	 * GLAM iterations don't overwrite the tree being updated or the files that made it
+	 */
+	private final String updateOutputTag;
+	/** The shard trees while building with shards, otherwise null */
+	private BehaviourTree[] shards = null;
+	/**
+	 * Held (shared) by workers while adding sequences to the tree, and exclusively while saving it
+	 */
+	private final ReadWriteLock treeLock = new ReentrantReadWriteLock();
 	
 	public static void main(String[] args) throws IOException, InterruptedException {
 		LogManager.initialise("BtMaker");
@@ -81,8 +128,8 @@ public class BtBuilder {
 		/** Save tree only every SAVE_INTERVAL replays so less time is spent writing out trees */
 		saveInterval = Integer.parseInt(Util.getPropertyNotNull(p, "save_interval"));
 		/**
-		 * File from which to load usable characters for representing nodes in a sequence so they can be
-		 * analysed by an external program (GLAM)
+		 * File from which to load usable characters for representing nodes in a sequence so they
+		 * can be analysed by an external program (GLAM)
 		 */
 		alphabetFilename = Util.getPropertyNotNull(p, "alphabet_filename");
 		/** Output file for encoded action sequences from the BT */
@@ -97,37 +144,115 @@ public class BtBuilder {
 		glamFoldernameBase = Util.getPropertyNotNull(p, "glam_foldername_base");
 		glamTxtFilename = Util.getPropertyNotNull(p, "glam_txt_filename");
 		glamProcessingFlagFile = Util.getPropertyNotNull(p, "glam_processing_flag_file");
+		/** Whether to align in-process rather than waiting for an external glam2 run */
+		glamInProcess = Boolean.parseBoolean(Util.getPropertyNotNull(p, "glam_in_process"));
+		/** glam2 style arguments for the in-process aligner */
+		glamArgs = Util.getPropertyNotNull(p, "glam_args");
+		/** If not empty, the glam2 program to run, rather than waiting for an external script */
+		glamExecutable = Util.getPropertyNotNull(p, "glam_executable");
+		/** Longest to wait for each glam2 run, in minutes. 0 to wait forever. */
+		glamTimeoutMinutes = Long.parseLong(Util.getPropertyNotNull(p, "glam_timeout_minutes"));
+		/** Number of annealing runs the in-process aligner does at once. 0 for one per core. */
+		glamThreads = Integer.parseInt(Util.getPropertyNotNull(p, "glam_threads"));
+		/** Whether the in-process aligner also splits resampling between threads within each run */
+		glamParallelColumns = Boolean.parseBoolean(
+				Util.getPropertyNotNull(p, "glam_parallel_columns"));
+		/** Number of worker threads reading replays from the DB when building the initial tree */
+		ingestThreads = Math.min(dbi.getMaxConnections(),
+				Integer.parseInt(Util.getPropertyNotNull(p, "ingest_threads")));
+		/** Whether action nodes store their actions as primitive arrays to save memory */
+		packActionNodes = Boolean.parseBoolean(Util.getPropertyNotNull(p, "pack_action_nodes"));
+		/** Whether the workers add sequences to the tree themselves, rather than one at a time */
+		concurrentInsert = Boolean.parseBoolean(Util.getPropertyNotNull(p, "concurrent_insert"));
+		/** Number of separate trees the workers add sequences to, merged before saving */
+		numShards = Integer.parseInt(Util.getPropertyNotNull(p, "build_shards"));
+		/** Whether identical sequences share one node */
+		internNodes = Boolean.parseBoolean(Util.getPropertyNotNull(p, "intern_nodes"));
+		/** Whether to build the initial tree as a prefix trie of the action sequences */
+		prefixTrie = Boolean.parseBoolean(Util.getPropertyNotNull(p, "prefix_trie"));
+		if (prefixTrie && numShards > 1) {
+			// Shards are merged by the usual rules, which would break up the trie's branches
+			throw new RuntimeException("prefix_trie can't be used with build_shards");
+		}
+		/** If not empty, a finished tree to add new replays to instead of building a new one */
+		updateTreeFilename = Util.getPropertyNotNull(p, "update_tree_filename");
+		/** Added to the names of the files written when updating a tree */
+		updateOutputTag = Util.getPropertyNotNull(p, "update_output_tag");
+		if (!updateTreeFilename.isEmpty() && updateOutputTag.isEmpty()) {
+			throw new RuntimeException("update_output_tag must be set to update a tree");
+		}
 	}
 	
 	public void run() throws IOException, InterruptedException {
 //		BehaviourTree tree = makeTree(dbi, new File(bt_filename), NodeType.CASE_BT_NODES);
 		
-		BehaviourTree tree = makeTree(dbi, new File(btActFilename), NodeType.ACTION_ONLY_NODES);
+		BehaviourTree tree;
+		// Names the files written, so an update doesn't overwrite the files of the original build
+		String tag = "";
+		if (!updateTreeFilename.isEmpty()) {
+			// Add any new replays to a finished tree, then align what didn't fit
+			tag = updateOutputTag;
+			File updateFile = new File(updateTreeFilename);
+			File updatedFile = new File(btActFilenameBase + tag + btActFilenameExt);
+			if (!updateFile.isFile()) {
+				throw new RuntimeException("Tree to update doesn't exist: " + updateFile);
+			}
+			if (updatedFile.getCanonicalFile().equals(updateFile.getCanonicalFile())) {
+				throw new RuntimeException("Updated tree would overwrite " + updateFile);
+			}
+			tree = makeTree(dbi, updateFile, updatedFile, NodeType.ACTION_ROUTED_NODES);
+		} else {
+			File treeFile = new File(btActFilename);
+			tree = makeTree(dbi, treeFile, treeFile,
+					prefixTrie ? NodeType.ACTION_TRIE_NODES : NodeType.ACTION_ONLY_NODES);
+		}
 		
 		BtGlamCodec dencoder = new BtGlamCodec(new File(alphabetFilename), rootEncoding,
 				leafEncoding, n -> SimilarityMetrics.exactActionHash(n));
 			
+		GlamAligner aligner = null;
+		if (glamInProcess) {
+			GlamAligner.Params params = GlamAligner.Params.parse(glamArgs);
+			if (glamThreads > 0) {
+				params.threads = glamThreads;
+			}
+			params.parallelColumns = glamParallelColumns;
+			aligner = new GlamAligner(params);
+		}
+		long glamTimeoutMillis = TimeUnit.MINUTES.toMillis(glamTimeoutMinutes);
+		GlamProcessRunner glamRunner = glamExecutable.isEmpty() ? null
+				: new GlamProcessRunner(glamExecutable, glamArgs, glamTimeoutMillis);
+		
 		for (int iteration = 1; iteration <= 50; iteration++) {
 			LOGGER.info("Starting encoding for iteration " + iteration);
-			GlamEncodingRecord e = dencoder.encodeToFile(tree,
-					new File(encSeqFilename + iteration + encSeqFilenameExt));
-			LOGGER.info("Encoded, awaiting GLAM run");
-			
-			File glamProcessing = new File(glamProcessingFlagFile);
-			glamProcessing.createNewFile();
-			do {
-				Thread.sleep(5000);
-			} while (glamProcessing.exists());
-			
-			LOGGER.info("GLAM finished, re-encoding tree");
-			File glamFile = new File(glamFoldernameBase + iteration + "/" + glamTxtFilename);
-			tree = dencoder.modifiedTreeFromGlamFile(e, glamFile);
+			if (aligner != null) {
+				GlamEncodingRecord e = dencoder.encode(tree);
+				LOGGER.info("Encoded, aligning");
+				tree = dencoder.modifiedTreeFromAligner(e, aligner);
+			} else {
+				File seqFile = new File(encSeqFilename + tag + iteration + encSeqFilenameExt);
+				GlamEncodingRecord e = dencoder.encodeToFile(tree, seqFile);
+				File glamFolder = new File(glamFoldernameBase + tag + iteration);
+				if (glamRunner != null) {
+					LOGGER.info("Encoded, running GLAM");
+					glamRunner.run(new File(alphabetFilename), seqFile, glamFolder);
+				} else {
+					LOGGER.info("Encoded, awaiting GLAM run");
+					File glamProcessing = new File(glamProcessingFlagFile);
+					glamProcessing.createNewFile();
+					GlamProcessRunner.awaitDeletion(glamProcessing, glamTimeoutMillis);
+				}
+				
+				LOGGER.info("GLAM finished, re-encoding tree");
+				File glamFile = new File(glamFolder, glamTxtFilename);
+				tree = dencoder.modifiedTreeFromGlamFile(e, glamFile);
+			}
 			if (tree == null) {
 				return;
 			}
 			LOGGER.info("Finished modifying tree, saving");
 			BtXmlCodec.save(tree,
-					new File(btActFilenameBase + iteration + btActFilenameExt));
+					new File(btActFilenameBase + tag + iteration + btActFilenameExt));
 		}
 	}
 	
@@ -135,14 +260,17 @@ public class BtBuilder {
 	/**
 	 * Creates a simple (unprocessed) tree from the database / treeFile. This should be a tree with
 	 * a single choice (branch) node at the root, and all nodes in sequences without further
-	 * branching.
+	 * branching. Progress is saved to treeFile, and if it doesn't exist yet the tree is started
+	 * from startFile (if that exists), which is left as it is.
 	 */
-	private BehaviourTree makeTree(DbInterface dbi, File treeFile, NodeType nodeType) throws IOException {
+	private BehaviourTree makeTree(DbInterface dbi, File startFile, File treeFile,
+			NodeType nodeType) throws IOException {
 		BehaviourTree tree = null;
-		if (treeFile.isFile()) {
-			LOGGER.info("Tree file already exists. Loading / Resuming building.");
+		File loadFile = treeFile.isFile() ? treeFile : startFile;
+		if (loadFile.isFile()) {
+			LOGGER.info("Tree file " + loadFile + " already exists. Loading / Resuming building.");
 			try {
-				tree = BtXmlCodec.load(treeFile);
+				tree = BtXmlCodec.load(loadFile);
 			} catch (IOException e) {
 				LOGGER.log(Level.SEVERE, "Error loading tree", e);
 				System.exit(1);
@@ -164,56 +292,221 @@ public class BtBuilder {
 			}
 		}
 		// END OF HACKY BIT
+		tree.setInterning(internNodes);
 		
-		int numReplays = Replay.getReplays().size();
-		int replayCount = 0;
+		List<Replay> replays = Replay.getReplays();
+		// The workers need the whole pool, ingest_threads is sized to it
+		dbi.releaseDbc();
+		int numReplays = replays.size();
 		int playerReplayCount = 0;
-		// Start/resume building BT from DB
-		for (Replay replay : Replay.getReplays()) {
-			replayCount++;
-			if (tree.getProcessed().contains(replay.replayFileName)) {
-				LOGGER.fine("Skipping replay (already processed): " + replay.replayFileName);
-				continue;
+		/*
+		 * Start/resume building BT from DB. Replays are read and converted to sequences by a pool
+		 * of workers. By default the sequences are added to the tree here, one replay at a time in
+		 * the original order, so the resulting tree doesn't depend on the number of threads. With
+		 * concurrent_insert the workers add them as soon as they are read, which is faster but the
+		 * order of children and merged actions varies between runs. Either way replays are marked
+		 * processed and the tree saved here in order, and before saving, every replay in flight
+		 * is finished so the saved tree holds only replays marked processed. With build_shards
+		 * the workers add sequences to one of several smaller trees instead, so they rarely
+		 * contend, and the shards are merged into the main tree whenever it is saved. The number
+		 * of replays in flight is bounded so the workers can't get too far ahead.
+		 */
+		if (numShards > 1 && nodeType == NodeType.ACTION_ROUTED_NODES) {
+			// Sequences can only be routed through the loaded tree's branches
+			LOGGER.info("Routing sequences straight into the tree, ignoring build_shards");
+		} else if (numShards > 1) {
+			shards = new BehaviourTree[numShards];
+			for (int i = 0; i < numShards; i++) {
+				shards[i] = new BehaviourTree();
+				shards[i].setInterning(internNodes);
+			}
+		}
+		BehaviourTree sharedTree = tree;
+		ExecutorService workers = Executors.newFixedThreadPool(ingestThreads);
+		int maxPending = ingestThreads * 2;
+		Deque<Future<ReplaySequences>> pending = new ArrayDeque<>();
+		try {
+			for (int i = 0; i < numReplays; i++) {
+				Replay replay = replays.get(i);
+				int replayCount = i + 1;
+				if (tree.getProcessed().contains(replay.replayFileName)) {
+					LOGGER.fine("Skipping replay (already processed): " + replay.replayFileName);
+					continue;
+				}
+				pending.addLast(workers.submit(() -> {
+					ReplaySequences rs = readReplay(replay, replayCount, nodeType);
+					if (concurrentInsert || shards != null) {
+						addSequences(sharedTree, rs);
+					}
+					return rs;
+				}));
+				while (pending.size() >= maxPending) {
+					playerReplayCount = commit(tree, treeFile, pending, numReplays,
+							playerReplayCount);
+				}
+			}
+			while (!pending.isEmpty()) {
+				playerReplayCount = commit(tree, treeFile, pending, numReplays,
+						playerReplayCount);
 			}
+		} finally {
+			workers.shutdownNow();
+		}
+		// Anything added since the last save
+		treeLock.writeLock().lock();
+		try {
+			mergeShards(tree);
+			shards = null;
+		} finally {
+			treeLock.writeLock().unlock();
+		}
+		LOGGER.info("Tree loaded");
+		return tree;
+	}
+	
+	/**
+	 * Read a replay and convert each (non-neutral) player's actions into a sequence. Run by the
+	 * worker threads.
+	 */
+	private ReplaySequences readReplay(Replay replay, int replayCount, NodeType nodeType) {
+		try {
 			LOGGER.info("Reading replay " + replay.replayFileName);
-			
 			ScMap map;
 			try {
 				map = replay.getMap();
 			} catch (SQLException e) {
 				LOGGER.log(Level.SEVERE, "Failed to get map", e);
-				continue;
+				return new ReplaySequences(replay, replayCount, nodeType, null);
 			}
-			// Add an action sequence for each (non-neutral) player
+			List<Pair<PlayerReplay, List<BtNode>>> sequences = new ArrayList<>();
 			for (PlayerReplay p : replay.getPlayers()) {
 				if (!p.isNeutral()) {
-					LOGGER.info("Adding playerReplayId " + p.playerReplayIdDb + " as seq #"
-							+ playerReplayCount++);
 					if (nodeType == NodeType.CASE_BT_NODES) {
-						tree.addSequence(getBtNodes(p, replay, map));
-					} else if (nodeType == NodeType.ACTION_ONLY_NODES) {
-						tree.addSequence(getActionNodes(p));
+						sequences.add(new Pair<>(p, getBtNodes(p, replay, map)));
+					} else {
+						sequences.add(new Pair<>(p, getActionNodes(p)));
 					}
 				}
 			}
-			tree.setProcessed(replay.replayFileName);
-			if (replayCount % saveInterval == 0 || replayCount == numReplays) {
-				try {
-					LOGGER.info("Saving tree file");
-					BtXmlCodec.save(tree, treeFile);
-				} catch (IOException e) {
-					LOGGER.log(Level.SEVERE, "Error while saving tree file", e);
+			return new ReplaySequences(replay, replayCount, nodeType, sequences);
+		} finally {
+			dbi.releaseDbc();
+		}
+	}
+	
+	/**
+	 * Wait for the first pending replay to be read, then add its sequences to the tree and save if
+	 * needed. Returns the updated count of player replays added.
+	 */
+	private int commit(BehaviourTree tree, File treeFile, Deque<Future<ReplaySequences>> pending,
+			int numReplays, int playerReplayCount) {
+		ReplaySequences rs = finish(tree, pending.removeFirst());
+		if (rs == null) {
+			return playerReplayCount;
+		}
+		playerReplayCount += rs.sequences.size();
+		if (rs.replayCount % saveInterval == 0 || rs.replayCount == numReplays) {
+			if (concurrentInsert || shards != null) {
+				// The workers may have added later replays already. Finish them all first so every
+				// replay in the saved tree is marked processed, and none are added again on resume.
+				while (!pending.isEmpty()) {
+					ReplaySequences later = finish(tree, pending.removeFirst());
+					if (later != null) {
+						playerReplayCount += later.sequences.size();
+					}
 				}
 			}
+			treeLock.writeLock().lock();
+			try {
+				mergeShards(tree);
+				LOGGER.info("Saving tree file after " + playerReplayCount + " player replays");
+				BtXmlCodec.save(tree, treeFile);
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, "Error while saving tree file", e);
+			} finally {
+				treeLock.writeLock().unlock();
+			}
 		}
-		LOGGER.info("Tree loaded");
-		return tree;
+		return playerReplayCount;
 	}
 	
-	private static List<BtNode> getActionNodes(PlayerReplay p) {
+	/**
+	 * Wait for a replay to be read, add its sequences to the tree if the worker didn't, and mark it
+	 * processed. Returns null if it couldn't be read.
+	 */
+	private ReplaySequences finish(BehaviourTree tree, Future<ReplaySequences> future) {
+		ReplaySequences rs;
+		try {
+			rs = future.get();
+		} catch (ExecutionException e) {
+			LOGGER.log(Level.SEVERE, "Failed to read replay", e.getCause());
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while building tree", e);
+		}
+		if (rs.sequences == null) {
+			return null;
+		}
+		if (!rs.added) {
+			addSequences(tree, rs);
+		}
+		tree.setProcessed(rs.replay.replayFileName);
+		return rs;
+	}
+	
+	/**
+	 * Merge the shards into the main tree and start them again empty. The write lock must be held
+	 * so no sequences are being added. Before a save, every pending replay has been finished (see
+	 * {@link #commit}), so the shards only hold replays that are marked processed.
+	 */
+	private void mergeShards(BehaviourTree tree) {
+		if (shards == null) {
+			return;
+		}
+		LOGGER.info("Merging " + shards.length + " shards into the tree");
+		for (int i = 0; i < shards.length; i++) {
+			tree.addTree(shards[i]);
+			shards[i] = new BehaviourTree();
+			shards[i].setInterning(internNodes);
+		}
+	}
+	
+	/**
+	 * Add the sequences read from a replay to the tree (or its shard), if it was read successfully
+	 */
+	private void addSequences(BehaviourTree tree, ReplaySequences rs) {
+		if (rs.sequences == null) {
+			return;
+		}
+		treeLock.readLock().lock();
+		try {
+			BehaviourTree target = tree;
+			if (shards != null) {
+				target = shards[rs.replayCount % shards.length];
+			}
+			for (Pair<PlayerReplay, List<BtNode>> seq : rs.sequences) {
+				LOGGER.info("Adding playerReplayId " + seq.first.playerReplayIdDb);
+				if (rs.nodeType == NodeType.ACTION_TRIE_NODES) {
+					target.addSequenceToTrie(seq.second, n -> SimilarityMetrics.exactActionHash(n));
+				} else if (rs.nodeType == NodeType.ACTION_ROUTED_NODES) {
+					int matched = target.routeSequence(seq.second,
+							n -> SimilarityMetrics.exactActionHash(n));
+					LOGGER.info("Routed " + matched + " of " + seq.second.size() + " actions");
+				} else {
+					target.addSequence(seq.second);
+				}
+			}
+			rs.added = true;
+		} finally {
+			treeLock.readLock().unlock();
+		}
+	}
+	
+	private List<BtNode> getActionNodes(PlayerReplay p) {
 		// convert to BtNodes
 		List<BtNode> result = p.getStrategicActionsAndEvents().stream()
-				.map(a -> new ActionBtNode(a))
+				.map(a -> new ActionBtNode(a, packActionNodes))
 				.collect(Collectors.toList());
 		
 		return result;
@@ -223,55 +516,69 @@ public class BtBuilder {
 	private static List<BtNode> getBtNodes(PlayerReplay p, Replay replay, ScMap map) {
 		List<BtNode> result = new ArrayList<>();
 		
-		List<Unit> unitsAllGame = p.getUnits();
-		List<Unit> opponentUnitsAllGame = null;
-		for (PlayerReplay p2 : replay.getPlayers()) {
-			if (!p2.equals(p) && p2.getRace() != RaceTypes.None) {
-				opponentUnitsAllGame = p2.getUnits();
+		PlayerReplaySnapshot player;
+		PlayerReplaySnapshot opponent = null;
+		try {
+			player = PlayerReplaySnapshot.load(p);
+			for (PlayerReplay p2 : replay.getPlayers()) {
+				if (!p2.equals(p) && p2.getRace() != RaceTypes.None) {
+					opponent = PlayerReplaySnapshot.load(p2);
+				}
 			}
+		} catch (SQLException e) {
+			LOGGER.log(Level.SEVERE, "Failed to load player " + p.playerReplayIdDb, e);
+			return result;
 		}
-		if (opponentUnitsAllGame == null) {
+		if (opponent == null) {
 			LOGGER.severe("Didn't find opponent units for player " + p.playerReplayIdDb);
 			return result;
 		}
-		Set<Unit> seenOpponentUnits = new HashSet<>();
-		
-		for (Action a : p.getActions()) {
+		// Sweep forward through the replay, updating counts incrementally
+		GameStateCursor state = new GameStateCursor(player, opponent);
+		for (Action a : player.getActions()) {
 			if (!a.isStrategicUnitCommandType()) {
 				continue;
 			}
-			
-			// counts for each unit type and (seen) opponent unit type
-			Map<UnitType, Integer> unitTypeCounts = unitsAllGame.stream()
-					.filter(u -> u.isExisting(a.frame))
-					.collect(Collectors.groupingBy(
-							Unit::getType,
-							Util.countingInt()));
-			
-			seenOpponentUnits.addAll(opponentUnitsAllGame.stream()
-					.filter(u -> !seenOpponentUnits.contains(u) && p.hasSeen(u, a.frame))
-					.collect(Collectors.toList()));
-			Map<UnitType, Integer> opponentUnitTypeCounts = opponentUnitsAllGame.stream()
-					.filter(u -> seenOpponentUnits.contains(u))
-					.filter(u -> u.isExisting(a.frame))
-					.collect(Collectors.groupingBy(
-							Unit::getType,
-							Util.countingInt()));
-			
-			try {
-				Resources r = p.getResources(a.frame);
-				result.add(new CaseBtNode(
-						a, map, r, unitTypeCounts, opponentUnitTypeCounts));
-			} catch (SQLException e) {
-				LOGGER.log(Level.SEVERE, "Failed to get resources", e);
+			state.advanceTo(a.frame);
+			Resources r = state.getResources();
+			if (r == null) {
+				LOGGER.severe(String.format("No resources found for player %d in frame %d",
+						p.playerReplayIdDb, a.frame));
 				continue;
 			}
+			// counts for each unit type and (seen) opponent unit type
+			result.add(new CaseBtNode(a, map, r, state.getUnitTypeCounts(),
+					state.getOpponentUnitTypeCounts()));
 		}
 		return result;
 	}
 	
 	private enum NodeType {
-		CASE_BT_NODES, ACTION_ONLY_NODES
+		CASE_BT_NODES, ACTION_ONLY_NODES,
+		/** Action nodes, with sequences sharing their common prefixes. See prefix_trie. */
+		ACTION_TRIE_NODES,
+		/** Action nodes, routed through an existing aligned tree. See update_tree_filename. */
+		ACTION_ROUTED_NODES
+	}
+	
+	/** The sequences read from one replay, ready to be added to the tree. */
+	private static class ReplaySequences {
+		public final Replay replay;
+		/** 1-based position of the replay in the list of all replays */
+		public final int replayCount;
+		public final NodeType nodeType;
+		/** Sequence for each player, or null if the replay couldn't be read */
+		public final List<Pair<PlayerReplay, List<BtNode>>> sequences;
+		/** Whether the sequences have been added to the tree yet */
+		public volatile boolean added = false;
+		
+		public ReplaySequences(Replay replay, int replayCount, NodeType nodeType,
+				List<Pair<PlayerReplay, List<BtNode>>> sequences) {
+			this.replay = replay;
+			this.replayCount = replayCount;
+			this.nodeType = nodeType;
+			this.sequences = sequences;
+		}
 	}
 	
 }
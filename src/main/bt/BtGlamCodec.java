@@ -35,7 +35,7 @@ public class BtGlamCodec {
 
 	private static final char UNUSED_CHAR = ' ';
 	
-	private static final char GLAM_GAP = '.';
+	static final char GLAM_GAP = '.';
 	private static final char GLAM_WILDCARD = '?';
 	
 	private final char[] alphabet;
@@ -58,26 +58,40 @@ public class BtGlamCodec {
 	/** Produce a modified tree using the GLAM output */
 	public BehaviourTree modifiedTreeFromGlamFile(GlamEncodingRecord er, File glamTxtFile)
 			throws IOException {
-		
-		GlamResult gr = new GlamResult(glamTxtFile, alphabet, er.numCharsUsed());
-		
+		return modifiedTree(er, new GlamResult(glamTxtFile, alphabet, er.numCharsUsed()));
+	}
+	
+	/** Produce a modified tree by aligning the encoded sequences in-process */
+	public BehaviourTree modifiedTreeFromAligner(GlamEncodingRecord er, GlamAligner aligner) {
+		String[] sequences = new String[er.numEncodedPaths()];
+		for (int seqId = 0; seqId < sequences.length; seqId++) {
+			EncodedPath p = er.getEncodedPath(seqId);
+			if (p.encLength > 0) {
+				sequences[seqId] = p.getFullEnc();
+			}
+		}
+		return modifiedTree(er, aligner.align(sequences, alphabet));
+	}
+	
+	/** Produce a modified tree using an alignment of the encoded sequences */
+	private BehaviourTree modifiedTree(GlamEncodingRecord er, GlamResult gr) {
 		int numSequences = er.numEncodedPaths();
 		
 		// Build the aligned sequence
 		LOGGER.info("Creating merged aligned sequence");
 		// First, find all the characters used at each position
-		List<Map<Character, Double>> allCharProps = gr.calcCharProportions(GENERALISATION_FACTOR);
-		List<List<Character>> allUsingChars = new ArrayList<>();
+		double[][] allCharProps = gr.calcCharProportions(GENERALISATION_FACTOR);
+		// Alphabet positions of the characters used at each position
+		BitSet[] allUsingChars = new BitSet[gr.getNumAlignedPos()];
 		for (int alignPos = 0; alignPos < gr.getNumAlignedPos(); alignPos++) {
-			Map<Character, Double> charProportions = allCharProps.get(alignPos);
-			List<Character> usingChars = new ArrayList<>();
-			for (Entry<Character, Double> charProportion : charProportions.entrySet()) {
-				if (!isSpecialChar(charProportion.getKey())
-						&& charProportion.getValue() > GENERALISATION_FACTOR) {
-					usingChars.add(charProportion.getKey());
+			double[] charProportions = allCharProps[alignPos];
+			BitSet usingChars = new BitSet(alphabet.length);
+			for (int c = 0; c < alphabet.length; c++) {
+				if (!isSpecialChar(alphabet[c]) && charProportions[c] > GENERALISATION_FACTOR) {
+					usingChars.set(c);
 				}
 			}
-			allUsingChars.add(usingChars);
+			allUsingChars[alignPos] = usingChars;
 		}
 		// Find/merge the nodes used at each position (note some might remain empty)
 		BtNode[] usingNodes = new BtNode[gr.getNumAlignedPos()];
@@ -88,7 +102,7 @@ public class BtGlamCodec {
 			if (a != null && a.score > REQUIRED_SCORE) {
 				modifiedParentToAlignment.put(encPath.parent, a);
 				for (int alignPos = 0; alignPos < gr.getNumAlignedPos(); alignPos++) {
-					List<Character> usingChars = allUsingChars.get(alignPos);
+					BitSet usingChars = allUsingChars[alignPos];
 					// Find corresponding path position (may be nonexistent)
 					int pathPos = findPathIdx(a, alignPos);
 					LOGGER.finest(String.format("For seq %d alignPos %d translates to pathPos %d",
@@ -107,7 +121,8 @@ public class BtGlamCodec {
 								c1, c2, c3, pathPos, alignPos, seqId, a.align));
 					}
 					
-					if (usingChars.contains(c3)) {
+					int c3Index = gr.charIndex(c3);
+					if (c3Index >= 0 && usingChars.get(c3Index)) {
 						BtNode toMerge = encPath.getFullPath().get(pathPos);
 						if (usingNodes[alignPos] == null) {
 							usingNodes[alignPos] = toMerge;
@@ -139,8 +154,8 @@ public class BtGlamCodec {
 		}
 		BtSelNode lastChild = new BtSelNode();
 		alignedSeq.addChild(lastChild);
-		LOGGER.info("Aligned seq: " + alignedSeq.toStringRecursive(new HashSet<>()) + " hash: "
-				+ Objects.hash(alignedSeq));
+		LOGGER.info("Aligned seq: " + alignedSeq.toStringRecursive(TreeWalker.newVisitedSet())
+				+ " hash: " + Objects.hash(alignedSeq));
 		// Create a replacement for each modified parent node
 		LOGGER.info("Creating modified parent nodes");
 		Map<BtNode, BtNode> replacementParents = new HashMap<>();
@@ -173,7 +188,7 @@ public class BtGlamCodec {
 		
 		// Replacements may themselves have replacements to be made
 		LOGGER.info("Updating replacements");
-		Set<BtNode> seen = new HashSet<>();
+		Set<BtNode> seen = TreeWalker.newVisitedSet();
 		for (BtNode replacement : replacementParents.values()) {
 			if (replacement.hasBeenMerged()) {
 				LOGGER.warning("Replacement value " + replacement + " is set to be replaced again");
@@ -204,9 +219,9 @@ public class BtGlamCodec {
 			LOGGER.info("Replaced root " + er.tree.getRoot() + " with " + newRoot);
 		}
 		newRoot.updateChildren(seen);
-		newRoot.mergeChildren(new HashSet<>());
+		newRoot.mergeChildren(TreeWalker.newVisitedSet());
 		// Ensure all children are updated after any merges
-		newRoot.updateChildren(new HashSet<>());
+		newRoot = BehaviourTree.resolveMerged(newRoot);
 
 		BehaviourTree result = new BehaviourTree(newRoot);
 		
@@ -226,8 +241,8 @@ public class BtGlamCodec {
 			return -1;
 		}
 		int numGaps = 0;
-		for (char c : a.align.substring(0, alignIdx).toCharArray()) {
-			if (c == GLAM_GAP)
+		for (int i = 0; i < alignIdx; i++) {
+			if (a.align.charAt(i) == GLAM_GAP)
 				numGaps++;
 		}
 		return alignIdx - numGaps + a.start;
@@ -238,9 +253,8 @@ public class BtGlamCodec {
 	}
 	
 	public GlamEncodingRecord encodeToFile(BehaviourTree tree, File encodedOut) throws IOException {
-		Map<Long, Character> hashToChar = makeNodeHashToCharMap(tree);
-		
-		List<EncodedPath> encoded = encodeFastaFormat(tree, hashToChar);
+		GlamEncodingRecord er = encode(tree);
+		List<EncodedPath> encoded = er.getEncodedPaths();
 		
 		try (BufferedWriter bw = new BufferedWriter(new FileWriter(encodedOut)) ) {
 			int seqCounter = 0;
@@ -255,6 +269,13 @@ public class BtGlamCodec {
 			}
 		}
 		
+		return er;
+	}
+	
+	/** Encode the tree's sequences without writing them out, for {@link GlamAligner} */
+	public GlamEncodingRecord encode(BehaviourTree tree) {
+		Map<Long, Character> hashToChar = makeNodeHashToCharMap(tree);
+		List<EncodedPath> encoded = encodeFastaFormat(tree, hashToChar);
 		return new GlamEncodingRecord(tree, hashToChar, encoded);
 	}
 	
@@ -262,7 +283,7 @@ public class BtGlamCodec {
 	 * Returns one {@link EncodedPath} for each sequence node in the tree. 
 	 */
 	private List<EncodedPath> encodeFastaFormat(BehaviourTree tree,
-			Map<Long, Character> hashToChar) throws IOException {
+			Map<Long, Character> hashToChar) {
 		List<EncodedPath> result = new ArrayList<>();
 		// TODO maybe try using all nodes with children - need better hash function first!
 		
@@ -300,8 +321,8 @@ public class BtGlamCodec {
 		Map<Long, Integer> hashToCount = new HashMap<>();
 		Map<Long, BtNode> hashToNode = new HashMap<>();
 		
-		Set<BtNode> found = BehaviourTree.findNodesDfs(tree.getRoot());
-		for (BtNode node : found) {
+		tree.compactIds();
+		TreeWalker.preOrder(tree.getRoot(), new NodeIdSet(tree), node -> {
 			long hash = hashFn.apply(node);
 			if (!hashToCount.containsKey(hash)) {
 				hashToCount.put(hash, 0);
@@ -310,7 +331,7 @@ public class BtGlamCodec {
 				}
 			}
 			hashToCount.put(hash, hashToCount.get(hash) + 1);
-		}
+		});
 		// pairs of <count,hash>
 		List<Pair<Integer, Long>> countHashPairs = hashToCount.entrySet().stream()
 				.map(e -> new Pair<>(e.getValue(), e.getKey()))
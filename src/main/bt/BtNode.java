@@ -2,6 +2,7 @@ package bt;
 
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public abstract class BtNode {
 	private static final java.util.logging.Logger LOGGER = java.util.logging.Logger
@@ -10,8 +11,17 @@ public abstract class BtNode {
 	/** @deprecated pretty sure weight isn't used any more */
 	private int weight;
 	
-	/** If this has been merged into another node, references that node */
-	private BtNode mergedInto = null;
+	/**
+	 * If this has been merged into another node, references that node. Volatile so a merge done
+	 * by one thread is seen by others adding to the same tree.
+	 */
+	private volatile BtNode mergedInto = null;
+	
+	/**
+	 * Dense id of this node in its tree, plus one so that 0 (also the value after loading) means
+	 * no id. See {@link BehaviourTree#compactIds()}.
+	 */
+	private transient int idPlusOne = 0;
 	
 	public BtNode() {
 		weight = 1;
@@ -24,6 +34,18 @@ public abstract class BtNode {
 		weight = toCopy.weight;
 	}
 	
+	/**
+	 * The dense id of this node in its tree, from 0 to {@link BehaviourTree#getNumIds()} - 1, for
+	 * indexing arrays instead of hashing nodes. -1 if none has been assigned.
+	 */
+	public int getId() {
+		return idPlusOne - 1;
+	}
+	
+	void setId(int id) {
+		idPlusOne = id + 1;
+	}
+	
 	/** Add a child to this BtNode. */
 	public abstract BtNode addChild(BtNode child);
 	
@@ -71,6 +93,24 @@ public abstract class BtNode {
 		return this == o;
 	}
 	
+	/**
+	 * A hash of the structure of this node, used to index children by what they can merge with:
+	 * if <code>a.canMergeIntoOne(b)</code> then <code>a.getMergeSignature() ==
+	 * b.getMergeSignature()</code>. Nodes that can only merge with themselves use their identity.
+	 */
+	public long getMergeSignature() {
+		return System.identityHashCode(this);
+	}
+	
+	/**
+	 * Whether this is a leaf that can merge with another exactly when they are both leaves of this
+	 * kind with equal {@link #getMergeSignature()}, so sequences of them can be compared by
+	 * signature alone.
+	 */
+	public boolean isMergeableBySignature() {
+		return false;
+	}
+	
 	/** Check this node hasn't been merged - warn if it has */
 	public void checkNotMerged() {
 		if (mergedInto != null) {
@@ -90,11 +130,24 @@ public abstract class BtNode {
 		mergedInto = merged;
 	}
 	
+	/**
+	 * Get the node this was (eventually) merged into, or this node if it hasn't been merged. Like
+	 * union-find, every node passed on the way is pointed straight at the result, so long chains of
+	 * merges only need to be followed once.
+	 */
 	public BtNode getMergedActual() {
-		if (mergedInto != null)
-			return mergedInto.getMergedActual();
-		else
-			return this;
+		BtNode actual = this;
+		while (actual.mergedInto != null) {
+			actual = actual.mergedInto;
+		}
+		// Path compression
+		BtNode node = this;
+		while (node.mergedInto != null && node.mergedInto != actual) {
+			BtNode next = node.mergedInto;
+			node.mergedInto = actual;
+			node = next;
+		}
+		return actual;
 	}
 	
 	public boolean hasBeenMerged() {
@@ -103,20 +156,50 @@ public abstract class BtNode {
 	
 	public abstract BtNode duplicateWithoutChildren();
 	
+	/**
+	 * Call the action on each child of this node, in the same order as {@link #getChildren()} but
+	 * without copying the children into a new list.
+	 */
+	public void forEachChild(Consumer<BtNode> action) {
+		for (BtNode child : getChildren()) {
+			action.accept(child);
+		}
+	}
+	
+	/**
+	 * Replace any children of this node that have been merged with the node they were merged into.
+	 * Not recursive. Nodes without children have nothing to do.
+	 */
+	public void resolveChildren() {
+		return;
+	}
+	
+	/**
+	 * Merge the children of this node that are able to be merged. Not recursive. Nodes without
+	 * children have nothing to do.
+	 */
+	protected void mergeOwnChildren() {
+		return;
+	}
+	
 	/**
 	 * Update the children of this node (recursively), making any merged nodes point to the
 	 * actual node they have been merged into.<br>
-	 * <code>seen</code> is used to prevent infinite recursion, and should just be a
-	 * <code>new HashSet<>()</code> at the top level.
+	 * Nodes in <code>seen</code> are skipped, so it can be shared between calls to avoid repeating
+	 * work, or just be a {@link TreeWalker#newVisitedSet()} at the top level.
 	 */
-	public abstract void updateChildren(Set<BtNode> seen);
+	public void updateChildren(Set<BtNode> seen) {
+		TreeWalker.preOrder(this, seen, BtNode::resolveChildren);
+	}
 	
 	/**
 	 * Merge the children of this node that are able to be merged (recursively).<br>
-	 * <code>seen</code> is used to prevent infinite recursion, and should just be a
-	 * <code>new HashSet<>()</code> at the top level.
+	 * Nodes in <code>seen</code> are skipped, so it can be shared between calls to avoid repeating
+	 * work, or just be a {@link TreeWalker#newVisitedSet()} at the top level.
 	 */
-	public abstract void mergeChildren(Set<BtNode> seen);
+	public void mergeChildren(Set<BtNode> seen) {
+		TreeWalker.preOrder(this, seen, BtNode::mergeOwnChildren);
+	}
 	
 	public String toString() {
 		return "BtNode{children:" + getChildren().size() + " weight: " + weight + " " +
@@ -129,18 +212,29 @@ public abstract class BtNode {
 	}
 	
 	public String toStringRecursive(Set<BtNode> seen) {
-		String val = "{" + toShortString();
-		if (hasBeenMerged())
-			val += "(m)";
-		if (seen.add(this)) {
-			// Not seen before
-			for (BtNode child : getChildren()) {
-				val += child.toStringRecursive(seen);
+		StringBuilder val = new StringBuilder();
+		TreeWalker.walk(this, seen, new TreeWalker.Visitor() {
+			@Override
+			public boolean enter(BtNode node) {
+				val.append("{").append(node.toShortString());
+				if (node.hasBeenMerged())
+					val.append("(m)");
+				return true;
 			}
-			return val + "}";
-		} else {
-			return val + " (recursing)}";
-		}
-		
+			
+			@Override
+			public void exit(BtNode node) {
+				val.append("}");
+			}
+			
+			@Override
+			public void revisit(BtNode node) {
+				val.append("{").append(node.toShortString());
+				if (node.hasBeenMerged())
+					val.append("(m)");
+				val.append(" (recursing)}");
+			}
+		});
+		return val.toString();
 	}
 }
@@ -2,13 +2,25 @@ package bt;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+/**
+ * Chooses between its children, keeping a count of how many times each was added. Children can be
+ * added from several threads at once. The children are only read or changed while holding this
+ * node's monitor, and are only handed out as copies, so they can also be read meanwhile.
+ */
 // TODO maybe this should be abstract
 public class BtSelNode extends BtNode {
 	private static final Logger LOGGER = Logger.getLogger(BtSelNode.class.getName());
 	
 	private final Map<BtNode, Integer> childCounts = new HashMap<>(1);
+	/**
+	 * Children bucketed by {@link BtNode#getMergeSignature()}, so addChild only has to check the
+	 * children that could possibly merge with the new one. Built lazily and dropped whenever the
+	 * children are replaced.
+	 */
+	private transient Map<Long, List<BtNode>> childIndex = null;
 	
 	public BtSelNode() {}
 	
@@ -41,11 +53,23 @@ public class BtSelNode extends BtNode {
 		return o instanceof BtSelNode;
 	}
 	
+	/** All selectors can merge with each other */
+	@Override
+	public long getMergeSignature() {
+		return BtSelNode.class.hashCode();
+	}
+	
 	@Override
 	public BtNode addChild(BtNode child) {
 		return addChild(child, 1);
 	}
 
+	/**
+	 * Add the child with the given count, merging it into an existing child if possible. Safe to
+	 * call from several threads at once: the children are only locked while finding a match, and
+	 * merging into a matching child locks just that child, so different children can be merged
+	 * into at the same time.
+	 */
 	public BtNode addChild(BtNode child, int freq) {
 		child = child.getMergedActual();
 		child.checkNotMerged();
@@ -56,42 +80,93 @@ public class BtSelNode extends BtNode {
 			LOGGER.warning("Tried to add sel node as child of itself " + this);
 			return null;
 		}
-		updateChildrenNonRecursive();
-		if (childCounts.containsKey(child)) {
-			childCounts.put(child, childCounts.get(child) + freq);
-			return child;
-		}
+		long signature = child.getMergeSignature();
 		BtNode foundChild = null;
-		for (BtNode myChild : childCounts.keySet()) {
-			if (myChild.canMergeIntoOne(child)) {
-				foundChild = myChild;
+		synchronized (this) {
+			updateChildrenNonRecursive();
+			if (childCounts.containsKey(child)) {
+				childCounts.put(child, childCounts.get(child) + freq);
+				return child;
+			}
+			List<BtNode> candidates = getChildIndex().get(signature);
+			if (candidates != null) {
+				for (BtNode myChild : candidates) {
+					if (myChild.canMergeIntoOne(child)) {
+						foundChild = myChild;
+					}
+				}
+			}
+			if (foundChild == null) {
+				// didn't match with anything, just add it as a child
+				childCounts.put(child, freq);
+				indexChild(child, signature);
+				return child;
+			}
+			// Count it now, the merge itself doesn't need this node locked
+			childCounts.put(foundChild, childCounts.get(foundChild) + freq);
+		}
+		LOGGER.fine("Adding child " + child + " by merging, potential infinite loop here "
+				+ this);
+		BtNode newChild;
+		synchronized (foundChild) {
+			newChild = foundChild.merge(child);
+		}
+		if (newChild != foundChild) {
+			synchronized (this) {
+				int count = childCounts.remove(foundChild);
+				getChildIndex().get(signature).remove(foundChild);
+				childCounts.merge(newChild, count, Integer::sum);
+				indexChild(newChild, newChild.getMergeSignature());
+			}
+		}
+		return newChild;
+	}
+	
+	/** Replace a child with another node, which takes over its count */
+	public synchronized void replaceChild(BtNode oldChild, BtNode newChild) {
+		Integer count = childCounts.remove(oldChild);
+		if (count == null) {
+			LOGGER.warning("Tried to replace " + oldChild + " which isn't a child of " + this);
+			return;
+		}
+		childCounts.merge(newChild, count, Integer::sum);
+		childIndex = null;
+	}
+	
+	private Map<Long, List<BtNode>> getChildIndex() {
+		if (childIndex == null) {
+			childIndex = new HashMap<>(childCounts.size() * 2);
+			for (BtNode child : childCounts.keySet()) {
+				indexChild(child, child.getMergeSignature());
 			}
 		}
-		if (foundChild != null) {
-			LOGGER.fine("Adding child " + child + " by merging, potential infinite loop here "
-					+ this);
-			int count = childCounts.get(foundChild);
-			childCounts.remove(foundChild);
-			BtNode newChild = foundChild.merge(child);
-			childCounts.put(newChild, count + freq);
-			return newChild;
+		return childIndex;
+	}
+	
+	private void indexChild(BtNode child, long signature) {
+		List<BtNode> bucket = getChildIndex().computeIfAbsent(signature, k -> new ArrayList<>(1));
+		if (!bucket.contains(child)) {
+			bucket.add(child);
 		}
-		// didn't match with anything, just add it as a child
-		childCounts.put(child, freq);
-		return child;
 	}
 	
 	@Override
-	public List<BtNode> getChildren() {
+	public synchronized List<BtNode> getChildren() {
 		return Collections.unmodifiableList(new ArrayList<>(childCounts.keySet()));
 	}
 	
-	public Map<BtNode, Integer> getChildCounts() {
-		return Collections.unmodifiableMap(childCounts);
+	/** A copy of the children and their counts */
+	public synchronized Map<BtNode, Integer> getChildCounts() {
+		return Collections.unmodifiableMap(new HashMap<>(childCounts));
+	}
+	
+	/** The number of times the child was added, or 0 if it isn't a child */
+	public synchronized int getChildCount(BtNode child) {
+		return childCounts.getOrDefault(child, 0);
 	}
 	
 	@Override
-	public BtNode getRepresentativeChild() {
+	public synchronized BtNode getRepresentativeChild() {
 		// Use most-frequent child
 		Optional<Entry<BtNode, Integer>> a = childCounts.entrySet().stream()
 				.max(Comparator.comparingInt(e -> e.getValue()));
@@ -105,20 +180,37 @@ public class BtSelNode extends BtNode {
 	public BtNode duplicateWithoutChildren() {
 		BtSelNode copy = new BtSelNode(this);
 		copy.childCounts.clear();
+		copy.childIndex = null;
 		return copy;
 	}
 	
+	/** Calls the action on a copy of the children, so it isn't called holding the lock */
 	@Override
-	public void updateChildren(Set<BtNode> seen) {
-		if (seen.add(this)) {
-			updateChildrenNonRecursive();
-			for (BtNode child : childCounts.keySet()) {
-				child.updateChildren(seen);
-			}
+	public void forEachChild(Consumer<BtNode> action) {
+		BtNode[] children;
+		synchronized (this) {
+			children = childCounts.keySet().toArray(new BtNode[childCounts.size()]);
 		}
+		for (BtNode child : children) {
+			action.accept(child);
+		}
+	}
+	
+	@Override
+	public synchronized void resolveChildren() {
+		updateChildrenNonRecursive();
 	}
 	
+	/** Must hold this node's monitor */
 	private void updateChildrenNonRecursive() {
+		// Usually nothing has been merged, so check before copying the children
+		boolean anyMerged = false;
+		for (BtNode child : childCounts.keySet()) {
+			anyMerged |= child.hasBeenMerged();
+		}
+		if (!anyMerged) {
+			return;
+		}
 		List<BtNode> children = new ArrayList<>(childCounts.keySet());
 		for (BtNode child : children) {
 			if (child.hasBeenMerged()) {
@@ -128,25 +220,23 @@ public class BtSelNode extends BtNode {
 				int newCount = childCounts.getOrDefault(newChild, 0);
 				childCounts.put(newChild, prevCount + newCount);
 				child = newChild;
+				// A merge may have changed signatures, so re-index
+				childIndex = null;
 			}
 		}
 	}
 	
 	@Override
-	public void mergeChildren(Set<BtNode> seen) {
-		if (seen.add(this)) {
-			// Be a bit paranoid - update children before modifying them
-			checkNotMerged();
-			updateChildrenNonRecursive();
-			// Use existing merge-on-addChild to merge children
-			Map<BtNode, Integer> childrenCopy = new HashMap<>(childCounts);
-			childCounts.clear();
-			for (Entry<BtNode, Integer> e : childrenCopy.entrySet()) {
-				addChild(e.getKey(), e.getValue());
-			}
-			for (BtNode child : childCounts.keySet()) {
-				child.mergeChildren(seen);
-			}
+	protected synchronized void mergeOwnChildren() {
+		// Be a bit paranoid - update children before modifying them
+		checkNotMerged();
+		updateChildrenNonRecursive();
+		// Use existing merge-on-addChild to merge children
+		Map<BtNode, Integer> childrenCopy = new HashMap<>(childCounts);
+		childCounts.clear();
+		childIndex = null;
+		for (Entry<BtNode, Integer> e : childrenCopy.entrySet()) {
+			addChild(e.getKey(), e.getValue());
 		}
 	}
 	
@@ -157,7 +247,7 @@ public class BtSelNode extends BtNode {
 	 * are no children.
 	 */
 	// TODO should be taking into account the counts of the children
-	public BtNode getRandomChild() {
+	public synchronized BtNode getRandomChild() {
 		if (childCounts.size() == 0) {
 			LOGGER.warning("Returning null child from RandomSelNode with no children");
 			return null;
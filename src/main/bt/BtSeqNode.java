@@ -1,13 +1,28 @@
 package bt;
 
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 
 public class BtSeqNode extends BtNode {
 	private static final Logger LOGGER = Logger.getLogger(BtSeqNode.class.getName());
 	
+	/**
+	 * Only changed while holding this node's monitor. A merge only replaces children with the
+	 * nodes they were merged into, so unlocked readers (eg. {@link #getChildren()}) at worst see a
+	 * child that has since been merged.
+	 */
 	private final List<BtNode> children = new ArrayList<>(1);
+	/**
+	 * Signatures of the children, if they are all {@link BtNode#isMergeableBySignature()} leaves,
+	 * so that merge checks can compare packed arrays rather than walking the children. Null if
+	 * not computed; cleared whenever the children change. Filled in before it is published, so
+	 * other threads never see a partly filled array.
+	 */
+	private transient volatile long[] leafSignatures = null;
+	/** Cached value of {@link #leafSignatures} when the children aren't all leaves */
+	private static final long[] NOT_ALL_LEAVES = new long[0];
 	
 	public BtSeqNode() {}
 	
@@ -22,7 +37,7 @@ public class BtSeqNode extends BtNode {
 	}
 	
 	@Override
-	public BtNode getRepresentativeChild() {
+	public synchronized BtNode getRepresentativeChild() {
 		// Represented by first child
 		if (children.size() > 0) {
 			return children.get(0);
@@ -33,14 +48,15 @@ public class BtSeqNode extends BtNode {
 
 	/** Adds the child to the end of this sequence. */
 	@Override
-	public BtNode addChild(BtNode child) {
+	public synchronized BtNode addChild(BtNode child) {
 		child = child.getMergedActual();
 		children.add(child);
+		clearLeafSignatures();
 		return child;
 	}
 
 	@Override
-	public BtNode merge(BtNode o) {
+	public synchronized BtNode merge(BtNode o) {
 		checkNotMerged();
 		o.checkNotMerged();
 		if (this == o) return this;
@@ -48,13 +64,15 @@ public class BtSeqNode extends BtNode {
 		if (canMergeIntoOne(o)) {
 			updateChildrenNonRecursive();
 			o.setMergedInto(this);
-			List<BtNode> mergedChildren = new ArrayList<>();
-			for (int i = 0; i < getChildren().size(); i++) {
-				mergedChildren.add(getChildren().get(i).merge(o.getChildren().get(i).getMergedActual()));
-			}
-			children.clear();
-			for (BtNode child : mergedChildren) {
-				addChild(child);
+			// Replace children in place, so other threads checking canMergeIntoOne never see a
+			// partly built list
+			for (int i = 0; i < children.size(); i++) {
+				BtNode merged = children.get(i).merge(o.getChildren().get(i).getMergedActual())
+						.getMergedActual();
+				if (merged != children.get(i)) {
+					children.set(i, merged);
+					clearLeafSignatures();
+				}
 			}
 			return this;
 		}
@@ -66,11 +84,21 @@ public class BtSeqNode extends BtNode {
 	public boolean canMergeIntoOne(BtNode o) {
 		if (this == o) {
 			return true;
-		} else if (o instanceof BtSeqNode &&
-				getChildren().size() == o.getChildren().size()) {
-			for (int i = 0; i < getChildren().size(); i++) {
-				if (!getChildren().get(i).getMergedActual()
-						.canMergeIntoOne(o.getChildren().get(i).getMergedActual())) {
+		} else if (o instanceof BtSeqNode) {
+			long[] mine = getLeafSignatures();
+			long[] theirs = ((BtSeqNode) o).getLeafSignatures();
+			if (mine != null && theirs != null) {
+				return Arrays.equals(mine, theirs);
+			}
+			// Copies, so neither node is locked while checking the other
+			BtNode[] myChildren = copyChildren();
+			BtNode[] theirChildren = ((BtSeqNode) o).copyChildren();
+			if (myChildren.length != theirChildren.length) {
+				return false;
+			}
+			for (int i = 0; i < myChildren.length; i++) {
+				if (!myChildren[i].getMergedActual()
+						.canMergeIntoOne(theirChildren[i].getMergedActual())) {
 					return false;
 				}
 			}
@@ -79,6 +107,57 @@ public class BtSeqNode extends BtNode {
 		return false;
 	}
 
+	/** Rolling hash of the number of children and each child's signature, in order */
+	@Override
+	public long getMergeSignature() {
+		long[] leaves = getLeafSignatures();
+		if (leaves != null) {
+			long sig = leaves.length;
+			for (long leaf : leaves) {
+				sig = sig * 0x9E3779B97F4A7C15L + leaf;
+			}
+			return sig;
+		}
+		BtNode[] copy = copyChildren();
+		long sig = copy.length;
+		for (BtNode child : copy) {
+			sig = sig * 0x9E3779B97F4A7C15L + child.getMergedActual().getMergeSignature();
+		}
+		return sig;
+	}
+	
+	/** See {@link #leafSignatures} */
+	private long[] getLeafSignatures() {
+		// Read once, as another thread may clear it
+		long[] sigs = leafSignatures;
+		if (sigs == null) {
+			synchronized (this) {
+				if (leafSignatures != null) {
+					return leafSignatures == NOT_ALL_LEAVES ? null : leafSignatures;
+				}
+				sigs = new long[children.size()];
+				for (int i = 0; i < sigs.length && sigs != NOT_ALL_LEAVES; i++) {
+					BtNode child = children.get(i).getMergedActual();
+					if (child.isMergeableBySignature()) {
+						sigs[i] = child.getMergeSignature();
+					} else {
+						sigs = NOT_ALL_LEAVES;
+					}
+				}
+				leafSignatures = sigs;
+			}
+		}
+		return sigs == NOT_ALL_LEAVES ? null : sigs;
+	}
+	
+	private synchronized BtNode[] copyChildren() {
+		return children.toArray(new BtNode[children.size()]);
+	}
+	
+	private void clearLeafSignatures() {
+		leafSignatures = null;
+	}
+	
 	@Override
 	public BtNode duplicateWithoutChildren() {
 		BtSeqNode copy = new BtSeqNode(this);
@@ -87,33 +166,32 @@ public class BtSeqNode extends BtNode {
 	}
 	
 	@Override
-	public void updateChildren(Set<BtNode> seen) {
-		if (seen.add(this)) {
-			updateChildrenNonRecursive();
-			for (BtNode child : children) {
-				child.updateChildren(seen);
-			}
+	public void forEachChild(Consumer<BtNode> action) {
+		for (int i = 0; i < children.size(); i++) {
+			action.accept(children.get(i));
 		}
 	}
 	
+	@Override
+	public synchronized void resolveChildren() {
+		updateChildrenNonRecursive();
+	}
+	
+	/** Must hold this node's monitor */
 	private void updateChildrenNonRecursive() {
 		for (int i = 0; i < children.size(); i++) {
 			if (children.get(i).hasBeenMerged()) {
 				children.set(i, children.get(i).getMergedActual());
+				clearLeafSignatures();
 			}
 		}
 	}
 	
 	@Override
-	public void mergeChildren(Set<BtNode> seen) {
-		if (seen.add(this)) {
-			checkNotMerged();
-			// Not going to merge any children of a seq node
-			for (BtNode child : children) {
-				child.getMergedActual().mergeChildren(seen);
-			}
-			
-		}
+	protected synchronized void mergeOwnChildren() {
+		checkNotMerged();
+		// Not going to merge any children of a seq node, just make sure they're the actual ones
+		updateChildrenNonRecursive();
 	}
 	
 	public String toString() {
@@ -17,6 +17,7 @@ import scdb.*;
 import util.LogManager;
 import util.Util;
 import util.Util.Pair;
+import bt.StateStore.State;
 import bt.sc.ActionBtNode;
 import bt.sc.NodeWithActions;
 
@@ -34,6 +35,8 @@ public class BtTester {
 	private final String treeFileName = "behaviour_tree_actions_final.xml.gz";
 	private final String resultsByActNumFileName = "BtTesterResultsByActNum.csv";
 	private final String resultsByTimeFileName = "BtTesterResultsByTime.csv";
+	/** States at each action, precomputed by {@link StateStore}, or null to query them */
+	private final StateStore stateStore;
 
 	public static void main(String[] args) {
 		LogManager.initialise("BtTester");
@@ -45,6 +48,7 @@ public class BtTester {
 		} catch (Exception e) {
 			LOGGER.log(Level.SEVERE, e.getMessage(), e);
 		}
+		DbInterface.getInstance().logCacheStats();
 		
 		LOGGER.info("Finished");
 	}
@@ -55,6 +59,14 @@ public class BtTester {
 		int start = (int) ((FOLD_NUM - 1) / (double) NUM_FOLDS * allRandomReplays.size());
 		int end = (int) (FOLD_NUM / (double) NUM_FOLDS * allRandomReplays.size());
 		randomReplays = allRandomReplays.subList(start, end);
+		File stateFile = new File(StateStore.DEFAULT_FILENAME);
+		if (stateFile.exists()) {
+			stateStore = StateStore.load(stateFile);
+		} else {
+			LOGGER.warning("No precomputed states found in " + stateFile
+					+ ", querying them instead. Run StateStore to create them.");
+			stateStore = null;
+		}
 	}
 	
 	public void run() throws IOException {
@@ -73,11 +85,13 @@ public class BtTester {
 			}
 			// Write out results after each replay just in case
 			writeOutResultsByActNum(allResults, new File(resultsByActNumFileName));
-			writeOutResultsByTime(allResults, new File(resultsByTimeFileName), 24 * 10); // 10s intervals
+			// 10s intervals
+			writeOutResultsByTime(allResults, new File(resultsByTimeFileName), 24 * 10);
 		}
 	}
 	
-	private void writeOutResultsByActNum(List<TestResult> allResults, File file) throws IOException {
+	private void writeOutResultsByActNum(List<TestResult> allResults, File file)
+			throws IOException {
 		try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
 			out.write("similarities by action#");
 			out.newLine();
@@ -246,42 +260,18 @@ public class BtTester {
 		return Math.max(0f, Math.min(1f, result)); // force into [0, 1]
 	}
 	
-	private static State stateFromAction(Action act) throws SQLException {
-		PlayerReplay p = PlayerReplay.fromId(act.playerReplayIdDb);
-		Replay replay = p.getReplay();
-		ScMap map = replay.getMap();
-		
-		List<Unit> opponentUnitsAllGame = null;
-		for (PlayerReplay p2 : replay.getPlayers()) {
-			if (!p2.equals(p) && !p2.isNeutral()) {
-				opponentUnitsAllGame = p2.getUnits();
+	/** The state at the action, from the precomputed store if possible */
+	private State stateFromAction(Action act) throws SQLException {
+		if (stateStore != null) {
+			State state = stateStore.get(act);
+			if (state != null) {
+				return state;
 			}
 		}
-		if (opponentUnitsAllGame == null) {
-			LOGGER.severe("Didn't find opponent units for player " + p.playerReplayIdDb);
-			return null;
-		}
-		
-		Map<UnitType, Integer> unitTypeCounts = p.getUnitsExisting(act.frame).stream()
-				.collect(Collectors.groupingBy(
-						Unit::getType,
-						Util.countingInt()));
-		
-		Set<Unit> seenOpponentUnits = opponentUnitsAllGame.stream()
-				.filter(u -> p.hasSeen(u, act.frame))
-				.collect(Collectors.toSet());
-		Map<UnitType, Integer> opponentUnitTypeCounts = opponentUnitsAllGame.stream()
-				.filter(u -> seenOpponentUnits.contains(u))
-				.filter(u -> u.isExisting(act.frame))
-				.collect(Collectors.groupingBy(
-						Unit::getType,
-						Util.countingInt()));
-		
-		Resources r = p.getResources(act.frame);
-		return new State(map, r, unitTypeCounts, opponentUnitTypeCounts);
+		return StateStore.compute(act);
 	}
 
-	private static class BtHandler {
+	private class BtHandler {
 		private final BehaviourTree bt;
 		private final List<BtNode> stack = new ArrayList<>();
 		BtHandler(BehaviourTree tree) {
@@ -359,21 +349,6 @@ public class BtTester {
 
 	}
 	
-	private static class State {
-		public final ScMap map;
-		public final Resources resources;
-		public final Map<UnitType, Integer> unitTypeCounts;
-		public final Map<UnitType, Integer> opponentUnitTypeCounts;
-		
-		public State(ScMap map, Resources resources, Map<UnitType, Integer> unitTypeCounts,
-				Map<UnitType, Integer> opponentUnitTypeCounts) {
-			this.map = map;
-			this.resources = resources;
-			this.unitTypeCounts = Collections.unmodifiableMap(unitTypeCounts);
-			this.opponentUnitTypeCounts = Collections.unmodifiableMap(opponentUnitTypeCounts);
-		}
-	}
-	
 	private static class TestResult {
 		private List<Integer> frames = new ArrayList<>();
 		private List<Double> scores = new ArrayList<>();
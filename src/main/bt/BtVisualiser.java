@@ -6,7 +6,6 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -132,22 +131,26 @@ public class BtVisualiser {
 			throws IOException {
 		LOGGER.info("Generating dot file " + outFile.getAbsolutePath());
 		ArrayDeque<BtNode> open = new ArrayDeque<>();
-		Map<BtNode, Integer> closed = new LinkedHashMap<>();
+		// Nodes to output, in order, and their ids in the dot file (0 for not output)
+		List<BtNode> closed = new ArrayList<>();
+		// Uses the tree's current ids, so the caller's id-keyed tables stay valid
+		NodeIntTable dotIds = new NodeIntTable(tree, 0);
 		open.add(tree.getRoot());
 		
 		int idCounter = 0;
 		while (!open.isEmpty() && closed.size() < maxNumNodes) {
 			BtNode current = open.removeFirst();
-			if (!closed.containsKey(current)) {
-				closed.put(current, ++idCounter);
+			if (dotIds.get(current) == 0) {
+				closed.add(current);
+				dotIds.put(current, ++idCounter);
 				int childCount = 0;
 				for (BtNode child : current.getChildren()) {
 					// Always add high-freq children
 					int childFreq = 0;
 					if (current instanceof BtSelNode) {
-						childFreq = ((BtSelNode) current).getChildCounts().get(child);
+						childFreq = ((BtSelNode) current).getChildCount(child);
 					} else if (current instanceof NodeWithActions) {
-						childFreq = ((NodeWithActions) current).getActions().size();
+						childFreq = ((NodeWithActions) current).getNumActions();
 					}
 					// Be selective about how many children to show so it's viewable
 					if (childCount < 5 || child.getChildren().size() > 0 && childCount < 20
@@ -167,35 +170,35 @@ public class BtVisualiser {
 			// root must come first, always ID 1
 			out.write("1;\n");
 			// write out all nodes
-			for (Entry<BtNode, Integer> e : closed.entrySet()) {
-				int parentId = e.getValue();
+			for (BtNode parent : closed) {
+				int parentId = dotIds.get(parent);
 				// eg: 1 [label="A"];
 				out.write(String.format("%d [label=\"%s\"];\n",
-						parentId, e.getKey().toShortString()));
+						parentId, parent.toShortString()));
 				// write out connections to other nodes
 				int numExcludedNodes = 0;
-				List<BtNode> children = e.getKey().getChildren();
+				List<BtNode> children = parent.getChildren();
 				for (int childIdx = 0; childIdx < children.size(); childIdx++) {
 					BtNode child = children.get(childIdx);
 					int freq = 1;
 					int weight = 1; // Not on label
-					if (e.getKey() instanceof BtSelNode) {
-						freq = ((BtSelNode) e.getKey()).getChildCounts().get(child);
+					if (parent instanceof BtSelNode) {
+						freq = ((BtSelNode) parent).getChildCount(child);
 					}
 					if (child instanceof ActionBtNode) {
-						weight = ((ActionBtNode) child).getActions().size();
+						weight = ((ActionBtNode) child).getNumActions();
 					}
-					if (closed.containsKey(child) && numExcludedNodes > 0) {
+					if (dotIds.get(child) != 0 && numExcludedNodes > 0) {
 						// nodes have been excluded in between children, write ellipsis first
 						writeEllipsisNode(out, parentId, ++idCounter, numExcludedNodes);
 						numExcludedNodes = 0;
 					}
-					if (closed.containsKey(child)) {
+					if (dotIds.get(child) != 0) {
 						String label = String.format(",label=\"%d\"", freq);
 						if (freq == 1)
 							label = "";
 						out.write(String.format("%d -> %d [weight=%d%s];\n",
-								parentId, closed.get(child), freq + weight, label));
+								parentId, dotIds.get(child), freq + weight, label));
 					} else {
 						numExcludedNodes += freq;
 					}
@@ -81,6 +81,8 @@ public class BtXmlCodec {
 			}
 		}
 		bt.sanityCheck();
+		// Node ids aren't saved
+		bt.compactIds();
 		return bt;
 	}
 }
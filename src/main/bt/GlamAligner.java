@@ -0,0 +1,778 @@
+package bt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+import java.util.logging.Logger;
+
+/**
+ * Finds a gapped motif shared by a set of sequences and aligns each sequence to it, by simulated
+ * annealing in the same way as GLAM2 (Frith et al. 2008). The result is a {@link GlamResult} like
+ * the one parsed from glam2's output, so {@link BtGlamCodec} can align in-process rather than
+ * handing files to an external glam2 run.<br>
+ * The motif is a number of key columns, each of which either matches one residue of an aligned
+ * sequence or is deleted from it, with any number of residues inserted between columns. An
+ * alignment is scored as the log (base e) of its marginal likelihood relative to the background:
+ * residues in each column have a uniform Dirichlet prior (pseudocount 1 per letter) against a
+ * uniform background, and deletions and insertions have Beta priors from the -D/-E and -I/-J
+ * pseudocounts. Sequences may be left out of the alignment (but at least -z are kept).<br>
+ * Each iteration resamples the alignment of one random sequence given all the others
+ * (site sampling), then makes -m column moves which add or remove a key column. The temperature
+ * is lowered by the -c factor every -n iterations, and a run ends after -n iterations without
+ * improving on its best alignment.<br>
+ * Runs are independent, each with its own random numbers seeded from -s, and are run in parallel on
+ * a {@link ForkJoinPool}. The result doesn't depend on the number of threads.
+ */
+public class GlamAligner {
+	private static final Logger LOGGER = Logger.getLogger(GlamAligner.class.getName());
+
+	private static final char GAP = '.';
+	private static final String SEQ_NAME = BtGlamCodec.SEQ_TAG.substring(1);
+
+	/** Settings, named after the glam2 command line options they correspond to */
+	public static class Params {
+		/** -a: minimum number of key columns */
+		public int minColumns = 2;
+		/** -b: maximum number of key columns */
+		public int maxColumns = 50;
+		/** -w: initial number of key columns */
+		public int initialColumns = 20;
+		/** -D: deletion pseudocount */
+		public double deletePseudocount = 0.1;
+		/** -E: no-deletion pseudocount */
+		public double noDeletePseudocount = 2.0;
+		/** -I: insertion pseudocount */
+		public double insertPseudocount = 0.02;
+		/** -J: no-insertion pseudocount */
+		public double noInsertPseudocount = 1.0;
+		/** -r: number of runs, the best of which is kept */
+		public int runs = 10;
+		/** -n: end each run after this many iterations without improvement */
+		public int iterations = 10000;
+		/** -t: initial temperature */
+		public double initialTemperature = 1.2;
+		/** -c: cooling factor per n iterations */
+		public double coolingFactor = 1.44;
+		/** -u: minimum temperature */
+		public double minTemperature = 0.1;
+		/** -m: column moves per site-sampling move */
+		public double columnMoves = 1.0;
+		/** -z: minimum number of aligned sequences */
+		public int minSequences = 2;
+		/** -s: random seed */
+		public long seed = 1;
+		/** Number of runs to do at once. Not a glam2 option. */
+		public int threads = Runtime.getRuntime().availableProcessors();
+		/**
+		 * Whether each run computes the match weights of the key columns in parallel when
+		 * resampling a sequence, which helps only with long sequences. Not a glam2 option.
+		 */
+		public boolean parallelColumns = false;
+
+		/**
+		 * Read settings from glam2 style arguments, eg. "-a 2 -b 20 -w 15". Settings not given keep
+		 * glam2's defaults.
+		 */
+		public static Params parse(String args) {
+			Params p = new Params();
+			String trimmed = args.trim();
+			if (trimmed.isEmpty()) {
+				return p;
+			}
+			String[] split = trimmed.split("\\s+");
+			if (split.length % 2 != 0) {
+				throw new IllegalArgumentException("Expected pairs of option and value: " + args);
+			}
+			for (int i = 0; i < split.length; i += 2) {
+				String value = split[i + 1];
+				switch (split[i]) {
+				case "-a": p.minColumns = Integer.parseInt(value); break;
+				case "-b": p.maxColumns = Integer.parseInt(value); break;
+				case "-w": p.initialColumns = Integer.parseInt(value); break;
+				case "-D": p.deletePseudocount = Double.parseDouble(value); break;
+				case "-E": p.noDeletePseudocount = Double.parseDouble(value); break;
+				case "-I": p.insertPseudocount = Double.parseDouble(value); break;
+				case "-J": p.noInsertPseudocount = Double.parseDouble(value); break;
+				case "-r": p.runs = Integer.parseInt(value); break;
+				case "-n": p.iterations = Integer.parseInt(value); break;
+				case "-t": p.initialTemperature = Double.parseDouble(value); break;
+				case "-c": p.coolingFactor = Double.parseDouble(value); break;
+				case "-u": p.minTemperature = Double.parseDouble(value); break;
+				case "-m": p.columnMoves = Double.parseDouble(value); break;
+				case "-z": p.minSequences = Integer.parseInt(value); break;
+				case "-s": p.seed = Long.parseLong(value); break;
+				default:
+					throw new IllegalArgumentException("Unsupported option " + split[i]);
+				}
+			}
+			if (p.minColumns < 1 || p.maxColumns < p.minColumns) {
+				throw new IllegalArgumentException("Need 1 <= -a <= -b: " + args);
+			}
+			p.initialColumns = Math.max(p.minColumns, Math.min(p.maxColumns, p.initialColumns));
+			return p;
+		}
+	}
+
+	private final Params params;
+
+	public GlamAligner(Params params) {
+		this.params = params;
+	}
+
+	/**
+	 * Align the sequences. The alignment for sequences[i] has sequence ID i in the result. Null or
+	 * empty sequences are left out.
+	 * @param alphabet all characters that may be used, the last of which is the wildcard
+	 */
+	public GlamResult align(String[] sequences, char[] alphabet) {
+		int[] charToIndex = GlamResult.indexAlphabet(alphabet);
+		int wildcard = alphabet.length - 1;
+		int[][] residues = new int[sequences.length][];
+		for (int s = 0; s < sequences.length; s++) {
+			String seq = sequences[s] == null ? "" : sequences[s];
+			residues[s] = new int[seq.length()];
+			for (int i = 0; i < seq.length(); i++) {
+				// The wildcard, and anything not in the alphabet, is scored like the background
+				int c = GlamResult.charIndex(charToIndex, seq.charAt(i));
+				residues[s][i] = c == wildcard ? -1 : c;
+			}
+		}
+
+		int poolSize = params.parallelColumns ? params.threads
+				: Math.min(params.threads, params.runs);
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, poolSize));
+		try {
+			List<ForkJoinTask<Run>> runs = new ArrayList<>();
+			for (int r = 0; r < params.runs; r++) {
+				int runId = r;
+				runs.add(pool.submit(() -> {
+					Run run = new Run(params, residues, alphabet.length - 1, params.seed + runId);
+					run.anneal();
+					LOGGER.info("Run " + runId + " score " + run.bestScore + " columns "
+							+ run.numColumns + " sequences " + run.numAligned);
+					return run;
+				}));
+			}
+			// Ties go to the earliest run, so the thread timing can't change the result
+			Run best = null;
+			for (ForkJoinTask<Run> task : runs) {
+				Run run = task.join();
+				if (best == null || run.bestScore > best.bestScore) {
+					best = run;
+				}
+			}
+			return best.toResult(sequences, alphabet, charToIndex);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Sum of log(x + i) for i in [0, n) */
+	private static double logRising(double x, int n) {
+		double result = 0;
+		for (int i = 0; i < n; i++) {
+			result += Math.log(x + i);
+		}
+		return result;
+	}
+
+	/** One annealing run, with its own random numbers */
+	private static class Run {
+		/** Fewest match weights per resampled sequence worth splitting between threads */
+		private static final int PARALLEL_WEIGHTS = 1 << 14;
+
+		private final Params params;
+		private final int[][] residues;
+		/** Number of letters, not counting the wildcard */
+		private final int alphabetSize;
+		private final double logAlphabetSize;
+		private final Random random;
+		/** logFactorial[n] = log(n!) */
+		private final double[] logFactorial;
+
+		private int numColumns;
+		/** For each sequence, where each key column starts in it. Null if not aligned. */
+		private int[][] cursors;
+		/** For each sequence, whether each key column matches a residue. Null if not aligned. */
+		private boolean[][] matches;
+
+		private int numAligned;
+		/** Count of each letter in each key column */
+		private int[][] columnCounts;
+		/** Number of letters (not wildcards) in each key column */
+		private int[] columnLetters;
+		/** Number of residues (including wildcards) in each key column */
+		private int[] columnMatches;
+		/** Number of residues inserted after each key column */
+		private int[] gapInserts;
+		private double score;
+
+		private double bestScore = Double.NEGATIVE_INFINITY;
+		private int bestNumColumns;
+		private int[][] bestCursors;
+		private boolean[][] bestMatches;
+
+		// Reused by sampleSite
+		private double[][] before;
+		private double[][] after;
+		private double[][] gapSums;
+		private double[][] matchWeights;
+		private double[] deleteWeights;
+
+		Run(Params params, int[][] residues, int alphabetSize, long seed) {
+			this.params = params;
+			this.residues = residues;
+			this.alphabetSize = alphabetSize;
+			logAlphabetSize = Math.log(alphabetSize);
+			random = new Random(seed);
+			int maxLength = 0;
+			int totalLength = 0;
+			for (int[] seq : residues) {
+				maxLength = Math.max(maxLength, seq.length);
+				totalLength += seq.length;
+			}
+			logFactorial = new double[alphabetSize + totalLength + 1];
+			for (int i = 2; i < logFactorial.length; i++) {
+				logFactorial[i] = logFactorial[i - 1] + Math.log(i);
+			}
+			before = new double[params.maxColumns][maxLength + 1];
+			after = new double[params.maxColumns][maxLength + 1];
+			gapSums = new double[params.maxColumns][maxLength + 1];
+			matchWeights = new double[params.maxColumns][maxLength];
+			deleteWeights = new double[params.maxColumns];
+
+			numColumns = params.initialColumns;
+			cursors = new int[residues.length][];
+			matches = new boolean[residues.length][];
+			recount();
+		}
+
+		void anneal() {
+			// Add the sequences to the alignment one at a time, in random order
+			int[] order = new int[residues.length];
+			for (int s = 0; s < order.length; s++) {
+				order[s] = s;
+			}
+			for (int s = order.length - 1; s > 0; s--) {
+				int r = random.nextInt(s + 1);
+				int tmp = order[s];
+				order[s] = order[r];
+				order[r] = tmp;
+			}
+			for (int s : order) {
+				if (residues[s].length > 0) {
+					sampleSite(s, params.initialTemperature);
+				}
+			}
+			saveBest();
+
+			int[] nonEmpty = Arrays.stream(order).filter(s -> residues[s].length > 0).toArray();
+			if (nonEmpty.length == 0) {
+				return;
+			}
+			int sinceImproved = 0;
+			for (long iteration = 0; sinceImproved < params.iterations; iteration++) {
+				double temperature = Math.max(params.minTemperature, params.initialTemperature
+						/ Math.pow(params.coolingFactor, (double) iteration / params.iterations));
+				sampleSite(nonEmpty[random.nextInt(nonEmpty.length)], temperature);
+				double moves = params.columnMoves;
+				for (; moves >= 1; moves--) {
+					sampleColumns(temperature);
+				}
+				if (random.nextDouble() < moves) {
+					sampleColumns(temperature);
+				}
+				if (score > bestScore + 1e-9) {
+					saveBest();
+					sinceImproved = 0;
+				} else {
+					sinceImproved++;
+				}
+			}
+			restoreBest();
+		}
+
+		private void saveBest() {
+			bestScore = score;
+			bestNumColumns = numColumns;
+			bestCursors = new int[cursors.length][];
+			bestMatches = new boolean[matches.length][];
+			for (int s = 0; s < cursors.length; s++) {
+				if (cursors[s] != null) {
+					bestCursors[s] = cursors[s].clone();
+					bestMatches[s] = matches[s].clone();
+				}
+			}
+		}
+
+		private void restoreBest() {
+			numColumns = bestNumColumns;
+			cursors = bestCursors;
+			matches = bestMatches;
+			recount();
+		}
+
+		/** Recalculate all counts and the score from the sequence alignments */
+		private void recount() {
+			numAligned = 0;
+			columnCounts = new int[numColumns][alphabetSize];
+			columnLetters = new int[numColumns];
+			columnMatches = new int[numColumns];
+			gapInserts = new int[numColumns];
+			for (int s = 0; s < residues.length; s++) {
+				if (cursors[s] != null) {
+					count(s, 1);
+				}
+			}
+			score = 0;
+			for (int j = 0; j < numColumns; j++) {
+				score += columnScore(columnCounts[j], columnLetters[j])
+						+ deleteScore(columnMatches[j], numAligned - columnMatches[j])
+						+ (j < numColumns - 1 ? gapScore(gapInserts[j], numAligned) : 0);
+			}
+		}
+
+		/** Add (delta 1) or remove (delta -1) the counts for a sequence's alignment */
+		private void count(int s, int delta) {
+			int[] cursor = cursors[s];
+			boolean[] match = matches[s];
+			numAligned += delta;
+			for (int j = 0; j < numColumns; j++) {
+				if (match[j]) {
+					columnMatches[j] += delta;
+					int letter = residues[s][cursor[j]];
+					if (letter >= 0) {
+						columnCounts[j][letter] += delta;
+						columnLetters[j] += delta;
+					}
+				}
+				if (j < numColumns - 1) {
+					gapInserts[j] += delta * (cursor[j + 1] - cursor[j] - (match[j] ? 1 : 0));
+				}
+			}
+		}
+
+		private double columnScore(int[] counts, int letters) {
+			double result = letters * logAlphabetSize
+					- (logFactorial[alphabetSize + letters - 1] - logFactorial[alphabetSize - 1]);
+			for (int c : counts) {
+				result += logFactorial[c];
+			}
+			return result;
+		}
+
+		private double deleteScore(int matched, int deleted) {
+			return logRising(params.deletePseudocount, deleted)
+					+ logRising(params.noDeletePseudocount, matched)
+					- logRising(params.deletePseudocount + params.noDeletePseudocount,
+							matched + deleted);
+		}
+
+		private double gapScore(int inserts, int aligned) {
+			return logRising(params.insertPseudocount, inserts)
+					+ logRising(params.noInsertPseudocount, aligned)
+					- logRising(params.insertPseudocount + params.noInsertPseudocount,
+							inserts + aligned);
+		}
+
+		/** Score for a residue in key column j, relative to the background */
+		private double letterScore(int j, int letter) {
+			if (letter < 0) {
+				return 0;
+			}
+			return Math.log((columnCounts[j][letter] + 1.0) / (columnLetters[j] + alphabetSize))
+					+ logAlphabetSize;
+		}
+
+		/**
+		 * The change in score from adding a sequence's alignment to the counts, which must not
+		 * include it
+		 */
+		private double pathScore(int s) {
+			int[] cursor = cursors[s];
+			boolean[] match = matches[s];
+			double deleteTotal = numAligned + params.deletePseudocount
+					+ params.noDeletePseudocount;
+			double result = 0;
+			for (int j = 0; j < numColumns; j++) {
+				if (match[j]) {
+					result += letterScore(j, residues[s][cursor[j]])
+							+ Math.log((columnMatches[j] + params.noDeletePseudocount)
+									/ deleteTotal);
+				} else {
+					result += Math.log((numAligned - columnMatches[j] + params.deletePseudocount)
+							/ deleteTotal);
+				}
+				if (j < numColumns - 1) {
+					int inserts = cursor[j + 1] - cursor[j] - (match[j] ? 1 : 0);
+					result += logRising(gapInserts[j] + params.insertPseudocount, inserts)
+							+ Math.log(numAligned + params.noInsertPseudocount)
+							- logRising(gapInserts[j] + numAligned + params.insertPseudocount
+									+ params.noInsertPseudocount, inserts + 1);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Resample the alignment of one sequence given all the others, choosing from every
+		 * possible alignment (or none) with probability proportional to exp(score / temperature).
+		 * Inserts are scored as if the insert counts didn't change within the sequence.
+		 */
+		private void sampleSite(int s, double temperature) {
+			if (cursors[s] != null) {
+				count(s, -1);
+				score -= pathScore(s);
+			}
+			int[] seq = residues[s];
+			int length = seq.length;
+			double invTemp = 1 / temperature;
+			double deleteTotal = numAligned + params.deletePseudocount
+					+ params.noDeletePseudocount;
+			double logScale = 0;
+			computeMatchWeights(seq, invTemp, deleteTotal);
+
+			// before[j][i]: weight of aligning columns [0, j) with column j starting at i
+			// after[j][i]: weight of aligning columns [0, j] with the next residue at i
+			// Each is scaled to a maximum of 1, with the scales summed in logScale
+			Arrays.fill(before[0], 0, length + 1, 1.0);
+			for (int j = 0; j < numColumns; j++) {
+				double[] b = before[j];
+				double[] a = after[j];
+				double[] m = matchWeights[j];
+				double delete = Math.exp(invTemp * Math.log((numAligned - columnMatches[j]
+						+ params.deletePseudocount) / deleteTotal));
+				deleteWeights[j] = delete;
+				a[0] = 0;
+				for (int i = 0; i < length; i++) {
+					a[i] += b[i] * delete;
+					a[i + 1] = b[i] * m[i];
+				}
+				a[length] += b[length] * delete;
+				logScale += rescale(a, length);
+
+				if (j < numColumns - 1) {
+					double insertTotal = gapInserts[j] + numAligned + params.insertPseudocount
+							+ params.noInsertPseudocount;
+					double insert = Math.exp(invTemp * Math.log((gapInserts[j]
+							+ params.insertPseudocount) / insertTotal));
+					double stop = Math.exp(invTemp * Math.log((numAligned
+							+ params.noInsertPseudocount) / insertTotal));
+					double[] g = gapSums[j];
+					double[] next = before[j + 1];
+					for (int i = 0; i <= length; i++) {
+						g[i] = a[i] + (i > 0 ? insert * g[i - 1] : 0);
+						next[i] = stop * g[i];
+					}
+					logScale += rescale(next, length);
+				}
+			}
+			double[] last = after[numColumns - 1];
+			double total = 0;
+			for (int i = 0; i <= length; i++) {
+				total += last[i];
+			}
+			// Uniform prior over where the alignment starts, against leaving it out
+			double logAligned = Math.log(total) + logScale - Math.log(length + 1);
+			boolean mustAlign = numAligned < params.minSequences;
+			if (!mustAlign && random.nextDouble() * (1 + Math.exp(logAligned)) < 1) {
+				cursors[s] = null;
+				matches[s] = null;
+				return;
+			}
+
+			// Trace back a random alignment
+			int[] cursor = new int[numColumns];
+			boolean[] match = new boolean[numColumns];
+			int i = pick(last, length);
+			for (int j = numColumns - 1; j >= 0; j--) {
+				double delete = before[j][i] * deleteWeights[j];
+				double matched = i > 0 ? before[j][i - 1] * matchWeights[j][i - 1] : 0;
+				if (random.nextDouble() * (delete + matched) < matched) {
+					match[j] = true;
+					i--;
+				}
+				cursor[j] = i;
+				if (j > 0) {
+					// Walk back over inserts before column j
+					double[] g = gapSums[j - 1];
+					double[] a = after[j - 1];
+					while (i > 0 && random.nextDouble() * g[i] >= a[i]) {
+						i--;
+					}
+				}
+			}
+			cursors[s] = cursor;
+			matches[s] = match;
+			score += pathScore(s);
+			count(s, 1);
+		}
+
+		/**
+		 * Fill in the weight of matching each residue of the sequence in each key column, which
+		 * depend only on the counts. This is most of the work of resampling a sequence, and the
+		 * columns are independent, so they are split between threads if
+		 * {@link Params#parallelColumns} is set and there are enough of them.
+		 */
+		private void computeMatchWeights(int[] seq, double invTemp, double deleteTotal) {
+			if (params.parallelColumns && numColumns > 1
+					&& (long) numColumns * seq.length >= PARALLEL_WEIGHTS) {
+				// Run in this run's pool, as this is called from one of its threads
+				IntStream.range(0, numColumns).parallel()
+						.forEach(j -> computeMatchWeights(j, seq, invTemp, deleteTotal));
+			} else {
+				for (int j = 0; j < numColumns; j++) {
+					computeMatchWeights(j, seq, invTemp, deleteTotal);
+				}
+			}
+		}
+
+		private void computeMatchWeights(int j, int[] seq, double invTemp, double deleteTotal) {
+			double[] m = matchWeights[j];
+			double logMatch = Math.log((columnMatches[j] + params.noDeletePseudocount)
+					/ deleteTotal);
+			for (int i = 0; i < seq.length; i++) {
+				m[i] = Math.exp(invTemp * (letterScore(j, seq[i]) + logMatch));
+			}
+		}
+
+		/** Scale values [0, length] to a maximum of 1 and return the log of the factor removed */
+		private static double rescale(double[] values, int length) {
+			double max = 0;
+			for (int i = 0; i <= length; i++) {
+				max = Math.max(max, values[i]);
+			}
+			if (max == 0) {
+				return 0;
+			}
+			for (int i = 0; i <= length; i++) {
+				values[i] /= max;
+			}
+			return Math.log(max);
+		}
+
+		/** Pick an index in [0, length] with probability proportional to its weight */
+		private int pick(double[] weights, int length) {
+			double total = 0;
+			for (int i = 0; i <= length; i++) {
+				total += weights[i];
+			}
+			double r = random.nextDouble() * total;
+			for (int i = 0; i < length; i++) {
+				r -= weights[i];
+				if (r < 0) {
+					return i;
+				}
+			}
+			return length;
+		}
+
+		/**
+		 * Propose adding or removing one key column, and accept with the Metropolis rule. Removed
+		 * columns' residues become inserts (or fall outside the motif at the ends). Added columns
+		 * take the residue next to either end of each alignment, or the first residue inserted
+		 * after a column.
+		 */
+		private void sampleColumns(double temperature) {
+			boolean canRemove = numColumns > params.minColumns;
+			boolean canAdd = numColumns < params.maxColumns;
+			int move = random.nextInt(4);
+			if (move == 0 && canRemove) {
+				int j = random.nextInt(numColumns);
+				double delta = -columnScore(columnCounts[j], columnLetters[j])
+						- deleteScore(columnMatches[j], numAligned - columnMatches[j]);
+				if (j > 0) {
+					delta -= gapScore(gapInserts[j - 1], numAligned);
+				}
+				if (j < numColumns - 1) {
+					delta -= gapScore(gapInserts[j], numAligned);
+				}
+				if (j > 0 && j < numColumns - 1) {
+					delta += gapScore(gapInserts[j - 1] + gapInserts[j] + columnMatches[j],
+							numAligned);
+				}
+				if (accept(delta, temperature)) {
+					replaceColumns(j, null, null);
+				}
+			} else if (move > 0 && canAdd && (move < 3 || numColumns > 1)) {
+				// New column is inserted at index j
+				int j = move == 1 ? 0 : move == 2 ? numColumns : 1 + random.nextInt(numColumns - 1);
+				int[] newCursor = new int[residues.length];
+				boolean[] newMatch = new boolean[residues.length];
+				int[] counts = new int[alphabetSize];
+				int letters = 0;
+				int matched = 0;
+				for (int s = 0; s < residues.length; s++) {
+					if (cursors[s] == null) {
+						continue;
+					}
+					int[] cursor = cursors[s];
+					boolean[] match = matches[s];
+					int pos;
+					if (j == 0) {
+						pos = cursor[0] - 1;
+						newCursor[s] = pos >= 0 ? pos : cursor[0];
+					} else {
+						pos = cursor[j - 1] + (match[j - 1] ? 1 : 0);
+						newCursor[s] = pos;
+						int end = j < numColumns ? cursor[j] : residues[s].length;
+						if (pos >= end) {
+							pos = -1;
+						}
+					}
+					if (pos >= 0) {
+						newMatch[s] = true;
+						matched++;
+						if (residues[s][pos] >= 0) {
+							counts[residues[s][pos]]++;
+							letters++;
+						}
+					}
+				}
+				double delta = columnScore(counts, letters)
+						+ deleteScore(matched, numAligned - matched)
+						+ gapScore(0, numAligned);
+				if (j > 0 && j < numColumns) {
+					// Splits the gap after column j - 1
+					delta += gapScore(gapInserts[j - 1] - matched, numAligned)
+							- gapScore(gapInserts[j - 1], numAligned);
+				}
+				if (accept(delta, temperature)) {
+					replaceColumns(j, newCursor, newMatch);
+				}
+			}
+		}
+
+		private boolean accept(double delta, double temperature) {
+			return delta >= 0 || random.nextDouble() < Math.exp(delta / temperature);
+		}
+
+		/**
+		 * Remove key column j (if newCursor is null) or insert a new one before it, then recount.
+		 */
+		private void replaceColumns(int j, int[] newCursor, boolean[] newMatch) {
+			int newNumColumns = numColumns + (newCursor == null ? -1 : 1);
+			for (int s = 0; s < residues.length; s++) {
+				if (cursors[s] == null) {
+					continue;
+				}
+				int[] cursor = new int[newNumColumns];
+				boolean[] match = new boolean[newNumColumns];
+				if (newCursor == null) {
+					System.arraycopy(cursors[s], 0, cursor, 0, j);
+					System.arraycopy(cursors[s], j + 1, cursor, j, newNumColumns - j);
+					System.arraycopy(matches[s], 0, match, 0, j);
+					System.arraycopy(matches[s], j + 1, match, j, newNumColumns - j);
+				} else {
+					System.arraycopy(cursors[s], 0, cursor, 0, j);
+					System.arraycopy(cursors[s], j, cursor, j + 1, numColumns - j);
+					System.arraycopy(matches[s], 0, match, 0, j);
+					System.arraycopy(matches[s], j, match, j + 1, numColumns - j);
+					cursor[j] = newCursor[s];
+					match[j] = newMatch[s];
+				}
+				cursors[s] = cursor;
+				matches[s] = match;
+			}
+			numColumns = newNumColumns;
+			recount();
+		}
+
+		/** Lay out the alignments as glam2 would print them */
+		GlamResult toResult(String[] sequences, char[] alphabet, int[] charToIndex) {
+			// Each insert position is as wide as the most residues any sequence inserts there
+			int[] maxInserts = new int[numColumns];
+			for (int s = 0; s < residues.length; s++) {
+				if (cursors[s] != null) {
+					for (int j = 0; j < numColumns - 1; j++) {
+						maxInserts[j] = Math.max(maxInserts[j], cursors[s][j + 1] - cursors[s][j]
+								- (matches[s][j] ? 1 : 0));
+					}
+				}
+			}
+			int numAlignedPos = numColumns;
+			for (int inserts : maxInserts) {
+				numAlignedPos += inserts;
+			}
+			boolean[] keyPos = new boolean[numAlignedPos];
+			for (int j = 0, pos = 0; j < numColumns; pos += 1 + maxInserts[j], j++) {
+				keyPos[pos] = true;
+			}
+
+			String[] aligns = new String[residues.length];
+			int[][] frequencies = new int[numColumns][alphabet.length];
+			int numSequences = 0;
+			for (int s = 0; s < residues.length; s++) {
+				if (cursors[s] == null) {
+					continue;
+				}
+				StringBuilder align = new StringBuilder(numAlignedPos);
+				boolean anyResidue = false;
+				for (int j = 0; j < numColumns; j++) {
+					int cursor = cursors[s][j];
+					if (matches[s][j]) {
+						char c = sequences[s].charAt(cursor);
+						align.append(c);
+						anyResidue = true;
+						// Anything not in the alphabet isn't counted, as in calcCharFreqs
+						int index = GlamResult.charIndex(charToIndex, c);
+						if (index >= 0) {
+							frequencies[j][index]++;
+						}
+						cursor++;
+					} else {
+						align.append(GAP);
+					}
+					if (j < numColumns - 1) {
+						int end = cursors[s][j + 1];
+						align.append(sequences[s], cursor, end);
+						anyResidue |= end > cursor;
+						for (int k = end - cursor; k < maxInserts[j]; k++) {
+							align.append(GAP);
+						}
+					}
+				}
+				if (anyResidue) {
+					aligns[s] = align.toString();
+					numSequences++;
+				}
+			}
+
+			StringBuilder consensus = new StringBuilder(numAlignedPos);
+			for (int j = 0; j < numColumns; j++) {
+				int mostCommon = 0;
+				for (int c = 1; c < alphabet.length; c++) {
+					if (frequencies[j][c] > frequencies[j][mostCommon]) {
+						mostCommon = c;
+					}
+				}
+				consensus.append(frequencies[j][mostCommon] > 0 ? alphabet[mostCommon] : ' ');
+				for (int k = 0; k < maxInserts[j]; k++) {
+					consensus.append(' ');
+				}
+			}
+			String scoreLine = String.format("Score: %.1f  Columns: %d  Sequences: %d", score,
+					numColumns, numSequences);
+			LOGGER.info(scoreLine);
+
+			GlamResult result = new GlamResult(alphabet, keyPos, frequencies, consensus.toString(),
+					scoreLine);
+			for (int s = 0; s < residues.length; s++) {
+				if (aligns[s] == null) {
+					continue;
+				}
+				count(s, -1);
+				double seqScore = pathScore(s);
+				count(s, 1);
+				int start = cursors[s][0];
+				int end = cursors[s][numColumns - 1] + (matches[s][numColumns - 1] ? 1 : 0) - 1;
+				result.addAlignment(s, SEQ_NAME + s, start, aligns[s], end, seqScore);
+			}
+			return result;
+		}
+	}
+}
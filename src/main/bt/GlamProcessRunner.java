@@ -0,0 +1,126 @@
+package bt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs an external glam2 on an encoded sequence file, with its output logged as it is printed.
+ * Also waits for the flag file handshake with run-glam-continuous.sh, for when glam2 is run
+ * elsewhere.
+ */
+public class GlamProcessRunner {
+	private static final Logger LOGGER = Logger.getLogger(GlamProcessRunner.class.getName());
+
+	private final String executable;
+	private final List<String> args;
+	/** Longest to wait for glam2 to finish, in milliseconds. 0 to wait forever. */
+	private final long timeoutMillis;
+
+	/**
+	 * @param args options for glam2, eg. "-a 2 -b 20 -w 15"
+	 */
+	public GlamProcessRunner(String executable, String args, long timeoutMillis) {
+		this.executable = executable;
+		this.args = args.trim().isEmpty() ? Arrays.asList()
+				: Arrays.asList(args.trim().split("\\s+"));
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Run glam2 on the sequence file, writing to the output folder (overwriting any previous
+	 * output), and return once it has exited. Throws IOException if it fails or times out.
+	 */
+	public void run(File alphabetFile, File sequenceFile, File outputFolder) throws IOException,
+			InterruptedException {
+		List<String> command = new ArrayList<>();
+		command.add(executable);
+		command.addAll(args);
+		command.addAll(Arrays.asList("-O", outputFolder.getPath(), alphabetFile.getPath(),
+				sequenceFile.getPath()));
+		LOGGER.info("Running " + String.join(" ", command));
+		long startTime = System.currentTimeMillis();
+		Process process = new ProcessBuilder(command).start();
+		Thread out = logLines(process.getInputStream(), Level.INFO);
+		Thread err = logLines(process.getErrorStream(), Level.WARNING);
+		try {
+			if (timeoutMillis > 0) {
+				if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+					throw new IOException("glam2 didn't finish within " + timeoutMillis + "ms");
+				}
+			} else {
+				process.waitFor();
+			}
+		} finally {
+			if (process.isAlive()) {
+				process.destroyForcibly();
+			}
+		}
+		// Make sure all output is logged before reporting on it
+		out.join();
+		err.join();
+		if (process.exitValue() != 0) {
+			throw new IOException("glam2 exited with code " + process.exitValue());
+		}
+		LOGGER.info("glam2 finished in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	/** Log each line from the stream on a new daemon thread, until the stream ends */
+	private Thread logLines(InputStream stream, Level level) {
+		Thread t = new Thread(() -> {
+			try (BufferedReader br = new BufferedReader(new InputStreamReader(stream))) {
+				String line;
+				while ((line = br.readLine()) != null) {
+					LOGGER.log(level, "glam2: " + line);
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Error reading glam2 output", e);
+			}
+		}, "glam2-output");
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Wait until the file is deleted, being notified by a {@link WatchService} rather than
+	 * polling. Throws IOException if it isn't deleted within the timeout (0 to wait forever).
+	 */
+	public static void awaitDeletion(File file, long timeoutMillis) throws IOException,
+			InterruptedException {
+		Path folder = file.getAbsoluteFile().getParentFile().toPath();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try (WatchService watcher = folder.getFileSystem().newWatchService()) {
+			folder.register(watcher, StandardWatchEventKinds.ENTRY_DELETE);
+			// Checked after registering so a deletion can't be missed
+			while (file.exists()) {
+				WatchKey key;
+				if (timeoutMillis > 0) {
+					long remaining = deadline - System.currentTimeMillis();
+					key = remaining > 0 ? watcher.poll(remaining, TimeUnit.MILLISECONDS) : null;
+					if (key == null && file.exists()) {
+						throw new IOException("Timed out waiting for " + file + " to be deleted");
+					}
+				} else {
+					key = watcher.take();
+				}
+				if (key != null) {
+					key.pollEvents();
+					key.reset();
+				}
+			}
+		}
+	}
+}
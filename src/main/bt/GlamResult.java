@@ -7,11 +7,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import org.apache.commons.io.Charsets;
 
@@ -26,17 +24,19 @@ public class GlamResult {
 	public boolean[] keyPos;
 	public String scoreLine;
 	/**
-	 * Note: may not contain an alignment for each ID. Excluded by GLAM if below certain score
-	 * threshold (0?)
+	 * Alignments indexed by sequence ID. Note: may not contain an alignment for each ID. Excluded
+	 * by GLAM if below certain score threshold (0?)
 	 */
-	private final Map<Integer, Alignment> idToAlignment = new HashMap<>();
+	private Alignment[] idToAlignment = new Alignment[16];
 	/**
-	 * List of [array of character frequencies for each character], for each key position in the
-	 * aligned sequence
+	 * Array of character frequencies for each character (indexed by alphabet position), for each
+	 * key position in the aligned sequence
 	 */
-	public final List<int[]> frequencies = new ArrayList<>();
+	public int[][] frequencies;
 	/** All characters used and unused, in order from most to least used */
 	private final char[] alphabet;
+	/** Position of each character in the alphabet, indexed by character, or -1 if not in it */
+	private final int[] charToIndex;
 	/** Total number of positions in the alignment - key and non-key positions */
 	private int numAlignedPos;
 	
@@ -44,6 +44,9 @@ public class GlamResult {
 		LOGGER.info("Parsing result. Alphabet length " + alphabet.length + " numCharsUsed "
 				+ numCharsUsed);
 		this.alphabet = alphabet;
+		charToIndex = indexAlphabet(alphabet);
+		List<int[]> freqs = new ArrayList<>();
+		LineTokens tokens = new LineTokens();
 		// Need to specify charset to read all the extended ASCII chars correctly
 		try (BufferedReader br = new BufferedReader(new InputStreamReader(
 				new FileInputStream(glamTxtFile), Charsets.ISO_8859_1)) ) {
@@ -80,15 +83,17 @@ public class GlamResult {
 				// read alignments eg. "seq0       1 R"""."&.".".)"."."&!"."3".!"&"$  23 + 137."
 				if (stage == 2) {
 					if (!line.isEmpty()) {
-						String[] split = line.split(" +");
-						if (split.length != 6) {
+						tokens.reset(line);
+						if (tokens.count() != 6) {
 							LOGGER.warning("Couldn't parse seq " + line);
 						} else {
-							Alignment a = new Alignment(split);
-							Alignment prev = idToAlignment.put(seqNameToId(a.seqName), a);
-							if (prev != null) {
-								LOGGER.warning("Same alignment id twice: " + a + " and " + prev);
-							}
+							String seqName = tokens.next();
+							int start = tokens.nextInt() - 1; // converting from 1 based indexing
+							String align = tokens.next();
+							int end = tokens.nextInt() - 1; // converting from 1 based indexing
+							tokens.skip(); // "+"
+							double score = Double.parseDouble(tokens.next());
+							addAlignment(seqNameToId(seqName), seqName, start, align, end, score);
 						}
 					} else {
 						stage++;
@@ -112,15 +117,17 @@ public class GlamResult {
 					if (!line.startsWith(" " + alphabet[0])) {
 						LOGGER.warning("Expected alphabet line, instead had: " + line);
 					} else {
-						String[] split = line.trim().split(" +");
-						if (split.length != alphabet.length + 2) { // +3 "Del Ins Score" -1 "?"
+						tokens.reset(line);
+						int count = tokens.count();
+						if (count != alphabet.length + 2) { // +3 "Del Ins Score" -1 "?"
 							LOGGER.warning("Expected " + alphabet.length + "+2 alphabet items "
-									+ "but found " + split.length);
+									+ "but found " + count);
 						}
-						for (int i = 0; i < split.length - 3 && i < alphabet.length - 1; i++) {
-							if (split[i].charAt(0) != alphabet[i]) {
-								LOGGER.warning("Alphabet char mismatch " + split[i].charAt(0)
-										+ " vs " + alphabet[i]);
+						for (int i = 0; i < count - 3 && i < alphabet.length - 1; i++) {
+							char c = tokens.nextChar();
+							if (c != alphabet[i]) {
+								LOGGER.warning("Alphabet char mismatch " + c + " vs "
+										+ alphabet[i]);
 							}
 						}
 					}
@@ -130,20 +137,23 @@ public class GlamResult {
 				// read freq counts eg. " 0  3  0  0  0  0 780  0  0  0  0   1      4.94e+03"
 				if (stage == 5) {
 					LOGGER.finer("Freq line: " + line);
-					String[] split = line.trim().split(" +");
+					tokens.reset(line);
+					int count = tokens.count();
 					LOGGER.finer("NumCharsUsed = " + numCharsUsed + " alpha length "
-							+ alphabet.length + " split length " + split.length);
-					if (split.length > alphabet.length) {
+							+ alphabet.length + " tokens " + count);
+					if (count > alphabet.length) {
 						// freq for each char in alphabet (except wildcard) + Del + Score
 						int[] freq = new int[alphabet.length];
 						for (int i = 0; i < alphabet.length - 1; i++) { // ignore Del, Score
-							freq[i] = Integer.parseInt(split[i]);
+							freq[i] = tokens.nextInt();
+						}
+						if (LOGGER.isLoggable(Level.FINE)) {
+							LOGGER.fine("Freq parsed: " + Arrays.toString(freq));
 						}
-						LOGGER.fine("Freq parsed: " + Arrays.toString(freq));
-						this.frequencies.add(freq);
-					} else if (split.length > 1) {
-						// ignore Ins, Score
-						if (split.length > 5) {
+						freqs.add(freq);
+					} else if (count > 1) {
+						// ignore Ins, Score. A line with one token or none ends the table
+						if (count > 5) {
 							LOGGER.warning("Unexpected freq entry " + line);
 						}
 					} else {
@@ -157,6 +167,32 @@ public class GlamResult {
 				}
 			}
 		}
+		frequencies = freqs.toArray(new int[freqs.size()][]);
+	}
+	
+	/** A result with no alignments yet, for an alignment found in-process by {@link GlamAligner} */
+	GlamResult(char[] alphabet, boolean[] keyPos, int[][] frequencies, String consensus,
+			String scoreLine) {
+		this.alphabet = alphabet;
+		charToIndex = indexAlphabet(alphabet);
+		this.keyPos = keyPos;
+		this.frequencies = frequencies;
+		this.consensus = consensus;
+		this.scoreLine = scoreLine;
+		numAlignedPos = keyPos.length;
+	}
+	
+	/** Add the alignment for a sequence. Start and end are 0 based. */
+	void addAlignment(int seqId, String seqName, int start, String align, int end, double score) {
+		if (seqId >= idToAlignment.length) {
+			idToAlignment = Arrays.copyOf(idToAlignment,
+					Math.max(seqId + 1, idToAlignment.length * 2));
+		}
+		Alignment prev = idToAlignment[seqId];
+		idToAlignment[seqId] = new Alignment(seqName, start, align, end, score);
+		if (prev != null) {
+			LOGGER.warning("Same alignment id twice: " + seqName + " and " + prev.seqName);
+		}
 	}
 	
 	private int seqNameToId(String seqName) {
@@ -164,43 +200,83 @@ public class GlamResult {
 		return Integer.parseInt(seqName.substring(BtGlamCodec.SEQ_TAG.length() - 1));
 	}
 	
-	public List<Map<Character, Double>> calcCharProportions(double requiredScore) {
-		List<Map<Character, Integer>> charFreqs = calcCharFreqs(requiredScore);
-		// Sum the char frequencies for each position (should all be the same)
-		int sum = charFreqs.get(0).values().stream().collect(Collectors.summingInt(x->x));
-		for (int i = 0; i < numAlignedPos; i++) {
-			int sumI = charFreqs.get(i).values().stream().collect(Collectors.summingInt(x->x));
-			if (sumI != sum) {
-				LOGGER.warning("Column " + i + " had different sum: " + sumI + " expected " + sum);
+	/** Index of each character's position in the alphabet, for {@link #charIndex(int[], char)} */
+	static int[] indexAlphabet(char[] alphabet) {
+		int max = 0;
+		for (char c : alphabet) {
+			max = Math.max(max, c);
+		}
+		int[] result = new int[max + 1];
+		Arrays.fill(result, -1);
+		for (int i = alphabet.length - 1; i >= 0; i--) {
+			result[alphabet[i]] = i;
+		}
+		return result;
+	}
+	
+	/** Position of the character in the alphabet, or -1 if it isn't in it (eg. a gap) */
+	public int charIndex(char c) {
+		return charIndex(charToIndex, c);
+	}
+	
+	/** Position of the character in an alphabet indexed by {@link #indexAlphabet(char[])} */
+	static int charIndex(int[] charToIndex, char c) {
+		return c < charToIndex.length ? charToIndex[c] : -1;
+	}
+	
+	/**
+	 * Get the proportion of included alignments with each character at each (key and non-key)
+	 * position in the alignment, indexed by [position][alphabet position]. Gaps make up the rest.
+	 */
+	public double[][] calcCharProportions(double requiredScore) {
+		int[][] charFreqs = calcCharFreqs(requiredScore);
+		int numIncluded = 0;
+		for (Alignment a : idToAlignment) {
+			if (a != null && a.score >= requiredScore) {
+				numIncluded++;
 			}
 		}
 		
-		double sumD = (double) sum;
-		List<Map<Character, Double>> charProportions = new ArrayList<>(numAlignedPos);
-		for (int i = 0; i < numAlignedPos; i++) {
-			Map<Character, Double> prop = charFreqs.get(i).entrySet().stream()
-					.collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue() / sumD));
-			charProportions.add(prop);
+		double[][] charProportions = new double[numAlignedPos][alphabet.length];
+		if (numIncluded > 0) {
+			double sumD = (double) numIncluded;
+			for (int i = 0; i < numAlignedPos; i++) {
+				for (int j = 0; j < alphabet.length; j++) {
+					charProportions[i][j] = charFreqs[i][j] / sumD;
+				}
+			}
 		}
 		return charProportions;
 	}
 	
-	/** Get a map of character frequencies for each (key and non-key) position in the alignment */
-	public List<Map<Character, Integer>> calcCharFreqs(double requiredScore) {
+	/**
+	 * Get the frequency of each character at each (key and non-key) position in the alignment,
+	 * indexed by [position][alphabet position]. Gaps aren't counted.
+	 */
+	public int[][] calcCharFreqs(double requiredScore) {
 		// Recalculate frequencies for all positions (not just key pos)
-		List<Map<Character, Integer>> myFrequencies = new ArrayList<>(numAlignedPos);
-		for (int i = 0; i < numAlignedPos; i++) {
-			myFrequencies.add(new HashMap<>());
-		}
+		int[][] myFrequencies = new int[numAlignedPos][alphabet.length];
 		boolean allAlignmentsIncluded = true;
-		for (Alignment a : idToAlignment.values()) {
+		for (Alignment a : idToAlignment) {
+			if (a == null) {
+				continue;
+			}
 			if (a.score < requiredScore) {
 				LOGGER.info("Excluding alignment " + a.seqName);
 				allAlignmentsIncluded = false;
 			} else {
-				for (int i = 0; i < numAlignedPos; i++) {
-					char c = a.align.charAt(i);
-					myFrequencies.get(i).merge(c, 1, (x, y) -> x + y);
+				if (a.align.length() != numAlignedPos) {
+					LOGGER.warning("Alignment " + a.seqName + " had length " + a.align.length()
+							+ " expected " + numAlignedPos);
+				}
+				for (int i = 0; i < numAlignedPos && i < a.align.length(); i++) {
+					int j = charIndex(a.align.charAt(i));
+					if (j >= 0) {
+						myFrequencies[i][j]++;
+					} else if (a.align.charAt(i) != BtGlamCodec.GLAM_GAP) {
+						LOGGER.warning("Char not in alphabet " + a.align.charAt(i) + " in "
+								+ a.seqName);
+					}
 				}
 			}
 		}
@@ -212,14 +288,12 @@ public class GlamResult {
 					offset++;
 				}
 				for (int j = 0; j < alphabet.length; j++) {
-					char c = alphabet[j];
-					LOGGER.finer("Checking " + c + " i=" + i + " j=" + j);
-					int myFreq = myFrequencies.get(i + offset).getOrDefault(c, 0);
-					int glamFreq = frequencies.get(i)[j];
+					int myFreq = myFrequencies[i + offset][j];
+					int glamFreq = frequencies[i][j];
 					if (myFreq != glamFreq) {
 						LOGGER.warning(String.format(
 								"Frequency counts mismatch at %d : %d (%c). Mine: %d, Theirs: %d",
-								i, j, c, myFreq, glamFreq));
+								i, j, alphabet[j], myFreq, glamFreq));
 					}
 				}
 			}
@@ -237,7 +311,92 @@ public class GlamResult {
 	 * was found by GLAM
 	 */
 	public Alignment getAlignment(int alignmentId) {
-		return idToAlignment.get(alignmentId);
+		return alignmentId >= 0 && alignmentId < idToAlignment.length
+				? idToAlignment[alignmentId] : null;
+	}
+	
+	/**
+	 * Splits a line into tokens separated by spaces, without regexes or copying any tokens that
+	 * are only parsed as numbers
+	 */
+	private static class LineTokens {
+		private String line;
+		private int pos;
+		
+		void reset(String line) {
+			this.line = line;
+			pos = 0;
+		}
+		
+		/** Number of tokens left on the line */
+		int count() {
+			int count = 0;
+			boolean inToken = false;
+			for (int i = pos; i < line.length(); i++) {
+				boolean space = line.charAt(i) == ' ';
+				if (!space && !inToken) {
+					count++;
+				}
+				inToken = !space;
+			}
+			return count;
+		}
+		
+		/** Move to the start of the next token and return its end */
+		private int tokenEnd() {
+			while (pos < line.length() && line.charAt(pos) == ' ') {
+				pos++;
+			}
+			if (pos == line.length()) {
+				throw new NumberFormatException("No more tokens in " + line);
+			}
+			int end = pos;
+			while (end < line.length() && line.charAt(end) != ' ') {
+				end++;
+			}
+			return end;
+		}
+		
+		String next() {
+			int end = tokenEnd();
+			String token = line.substring(pos, end);
+			pos = end;
+			return token;
+		}
+		
+		void skip() {
+			pos = tokenEnd();
+		}
+		
+		/** First character of the next token */
+		char nextChar() {
+			int end = tokenEnd();
+			char c = line.charAt(pos);
+			pos = end;
+			return c;
+		}
+		
+		int nextInt() {
+			int end = tokenEnd();
+			int i = pos;
+			boolean negative = line.charAt(i) == '-';
+			if (negative || line.charAt(i) == '+') {
+				i++;
+			}
+			if (i == end) {
+				throw new NumberFormatException("Not a number: " + line.substring(pos, end));
+			}
+			int result = 0;
+			for (; i < end; i++) {
+				int digit = line.charAt(i) - '0';
+				if (digit < 0 || digit > 9) {
+					throw new NumberFormatException("Not a number: " + line.substring(pos, end));
+				}
+				result = result * 10 + digit;
+			}
+			pos = end;
+			return negative ? -result : result;
+		}
 	}
 	
 	public class Alignment {
@@ -245,13 +404,12 @@ public class GlamResult {
 		public final String seqName, align;
 		public final double score;
 		
-		public Alignment(String[] line) {
-			seqName = line[0];
-			start = Integer.parseInt(line[1]) - 1; // converting from 1 based indexing
-			align = line[2];
-			end = Integer.parseInt(line[3]) - 1; // converting from 1 based indexing
-			// ignore line[4] == "+"
-			score = Double.parseDouble(line[5]);
+		Alignment(String seqName, int start, String align, int end, double score) {
+			this.seqName = seqName;
+			this.start = start;
+			this.align = align;
+			this.end = end;
+			this.score = score;
 		}
 	}
 
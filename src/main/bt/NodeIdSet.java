@@ -0,0 +1,50 @@
+package bt;
+
+import java.util.BitSet;
+import java.util.Set;
+
+/**
+ * A visited set for walking one tree, stored as a bitmap of the nodes' dense ids (see
+ * {@link BtNode#getId()}), so adding and checking nodes doesn't hash them or allocate. Nodes
+ * without an id are kept in an identity set instead. Only valid while the tree's ids aren't
+ * reassigned.
+ */
+public class NodeIdSet implements TreeWalker.VisitedSet {
+	private final BitSet ids;
+	private final Set<BtNode> withoutIds = TreeWalker.newVisitedSet();
+	private int size = 0;
+
+	public NodeIdSet(BehaviourTree tree) {
+		ids = new BitSet(tree.getNumIds());
+	}
+
+	@Override
+	public boolean add(BtNode node) {
+		int id = node.getId();
+		if (id < 0) {
+			return withoutIds.add(node);
+		}
+		if (ids.get(id)) {
+			return false;
+		}
+		ids.set(id);
+		size++;
+		return true;
+	}
+
+	@Override
+	public boolean contains(BtNode node) {
+		int id = node.getId();
+		return id < 0 ? withoutIds.contains(node) : ids.get(id);
+	}
+
+	public int size() {
+		return size + withoutIds.size();
+	}
+
+	public void clear() {
+		ids.clear();
+		withoutIds.clear();
+		size = 0;
+	}
+}
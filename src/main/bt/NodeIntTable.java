@@ -0,0 +1,61 @@
+package bt;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * An int value for each node of a tree, stored in an array indexed by the nodes' dense ids (see
+ * {@link BtNode#getId()}). For counts, depths, codes etc. in whole-tree passes, where a
+ * <code>Map&lt;BtNode, Integer&gt;</code> would hash and box on every access. Nodes without an id
+ * are kept in an identity map instead. Only valid while the tree's ids aren't reassigned.
+ */
+public class NodeIntTable {
+	private final int defaultValue;
+	private int[] values;
+	private final Map<BtNode, Integer> withoutIds = new IdentityHashMap<>();
+
+	/** A table for the given tree, with every node's value starting as defaultValue */
+	public NodeIntTable(BehaviourTree tree, int defaultValue) {
+		this.defaultValue = defaultValue;
+		values = new int[tree.getNumIds()];
+		Arrays.fill(values, defaultValue);
+	}
+
+	public int get(BtNode node) {
+		int id = node.getId();
+		if (id < 0) {
+			return withoutIds.getOrDefault(node, defaultValue);
+		}
+		return id < values.length ? values[id] : defaultValue;
+	}
+
+	public void put(BtNode node, int value) {
+		int id = node.getId();
+		if (id < 0) {
+			withoutIds.put(node, value);
+			return;
+		}
+		ensureCapacity(id + 1);
+		values[id] = value;
+	}
+
+	/** Add to the node's value and return the new value */
+	public int add(BtNode node, int delta) {
+		int id = node.getId();
+		if (id < 0) {
+			return withoutIds.merge(node, defaultValue + delta, (a, b) -> a + delta);
+		}
+		ensureCapacity(id + 1);
+		values[id] += delta;
+		return values[id];
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > values.length) {
+			int oldLength = values.length;
+			values = Arrays.copyOf(values, Math.max(capacity, oldLength * 2));
+			Arrays.fill(values, oldLength, values.length, defaultValue);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package bt;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hash-consing for whole sequences added to a tree. A sequence whose children are all leaves
+ * that can only ever merge with leaves with the same signature (see
+ * {@link BtNode#isMergeableBySignature()}) is kept once per list of signatures, and later ones
+ * are merged into it position by position. Identical sequences then share one node, which the
+ * root selector counts each time it is added, without searching its children for a match.
+ * <p>
+ * Leaves are never shared, between sequences or within one, so each leaf stays at a single
+ * position in a single sequence as {@link BtGlamCodec} expects.
+ */
+public class NodeInterner {
+	/** The signatures of a sequence's children */
+	private static class SeqKey {
+		private final long[] signatures;
+		private final int hash;
+
+		public SeqKey(long[] signatures) {
+			this.signatures = signatures;
+			hash = Arrays.hashCode(signatures);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof SeqKey && Arrays.equals(signatures, ((SeqKey) obj).signatures);
+		}
+	}
+
+	private final Map<SeqKey, BtSeqNode> sequences = new HashMap<>();
+
+	/**
+	 * Return the kept sequence with the same leaves as the given one, after merging the given one
+	 * into it, or the given one if it is the first of its kind or can't be interned.
+	 */
+	public BtSeqNode internSequence(BtSeqNode seq) {
+		List<BtNode> children = seq.getChildren();
+		long[] signatures = new long[children.size()];
+		for (int i = 0; i < signatures.length; i++) {
+			BtNode child = children.get(i).getMergedActual();
+			if (!child.isMergeableBySignature()) {
+				return seq;
+			}
+			signatures[i] = child.getMergeSignature();
+		}
+		SeqKey key = new SeqKey(signatures);
+		while (true) {
+			BtSeqNode first;
+			synchronized (this) {
+				first = sequences.putIfAbsent(key, seq);
+			}
+			if (first == null) {
+				return seq;
+			}
+			// The kept sequence may have been merged into another child of the root since
+			BtNode kept = first.getMergedActual();
+			synchronized (kept) {
+				if (!kept.hasBeenMerged() && kept instanceof BtSeqNode) {
+					kept.merge(seq);
+					return (BtSeqNode) kept;
+				}
+			}
+			synchronized (this) {
+				sequences.remove(key, first);
+			}
+		}
+	}
+
+	public synchronized int numSequences() {
+		return sequences.size();
+	}
+}
@@ -0,0 +1,369 @@
+package bt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import jnibwapi.types.UnitType;
+import jnibwapi.types.UnitType.UnitTypes;
+import scdb.Action;
+import scdb.ActionyEvent;
+import scdb.GameStateCursor;
+import scdb.PlayerReplay;
+import scdb.PlayerReplaySnapshot;
+import scdb.Replay;
+import scdb.Resources;
+import scdb.ScMap;
+import scdb.Unit;
+import util.LogManager;
+import util.Util;
+
+/**
+ * The game {@link State} at each strategic action (or actiony event) in the DB, computed once by
+ * {@link #main(String[])} and saved, so that {@link BtTester} can look states up by action instead
+ * of querying the DB for every candidate at every decision.<br>
+ * States are stored as one int array (map ID, resources, then unit type ID / count pairs for the
+ * player and the opponent) indexed by an open-addressing hash table of action keys (see
+ * {@link #keyOf(Action)}).
+ */
+public class StateStore {
+	private static final Logger LOGGER = Logger.getLogger(StateStore.class.getName());
+
+	private static final int MAGIC = 0x42545353; // "BTSS"
+	private static final int VERSION = 1;
+	public static final String DEFAULT_FILENAME = "action_states.bin";
+	/** Marks an empty slot in the hash table. Not a possible key. */
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private final Map<Integer, ScMap> maps;
+	private final long[] keys;
+	/** Offset into data for each key */
+	private final int[] offsets;
+	private final int[] data;
+	private final int size;
+
+	private StateStore(Map<Integer, ScMap> maps, long[] keys, int[] offsets, int[] data,
+			int size) {
+		this.maps = maps;
+		this.keys = keys;
+		this.offsets = offsets;
+		this.data = data;
+		this.size = size;
+	}
+
+	/** Compute the states for all replays and save them to the given (or the default) file */
+	public static void main(String[] args) {
+		LogManager.initialise("StateStore");
+		File file = new File(args.length > 0 ? args[0] : DEFAULT_FILENAME);
+		try {
+			build(Replay.getReplays()).save(file);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Failed to save states to " + file, e);
+		}
+		LOGGER.info("Finished");
+	}
+
+	/**
+	 * Key for looking up the state at an action. Actiony events have no action ID, so they are
+	 * keyed by the bitwise complement of their event ID (which is negative, unlike action IDs).
+	 */
+	public static long keyOf(Action a) {
+		if (a instanceof ActionyEvent) {
+			return ~((ActionyEvent) a).eventIdDb;
+		}
+		return a.actionIdDb;
+	}
+
+	/** Compute the states at each strategic action and event of each player in the replays */
+	public static StateStore build(List<Replay> replays) {
+		Builder builder = new Builder();
+		int count = 0;
+		for (Replay replay : replays) {
+			count++;
+			LOGGER.info("Computing states for replay " + count + " of " + replays.size() + ": "
+					+ replay.replayFileName);
+			try {
+				ScMap map = replay.getMap();
+				List<PlayerReplay> players = replay.getPlayers().stream()
+						.filter(p -> !p.isNeutral())
+						.collect(Collectors.toList());
+				if (players.size() != 2) {
+					LOGGER.warning("Skipping replay with " + players.size() + " players");
+					continue;
+				}
+				PlayerReplaySnapshot first = PlayerReplaySnapshot.load(players.get(0));
+				PlayerReplaySnapshot second = PlayerReplaySnapshot.load(players.get(1));
+				builder.addPlayer(map, first, second);
+				builder.addPlayer(map, second, first);
+			} catch (SQLException e) {
+				LOGGER.log(Level.SEVERE, "Failed to compute states for " + replay.replayFileName,
+						e);
+			}
+		}
+		StateStore store = builder.build();
+		LOGGER.info("Computed " + store.size() + " states");
+		return store;
+	}
+
+	/**
+	 * Compute the state at an action directly from the DB. Much slower than looking it up in a
+	 * store, but works for any action.
+	 */
+	public static State compute(Action act) throws SQLException {
+		PlayerReplay p = PlayerReplay.fromId(act.playerReplayIdDb);
+		Replay replay = p.getReplay();
+		ScMap map = replay.getMap();
+
+		List<Unit> opponentUnitsAllGame = null;
+		for (PlayerReplay p2 : replay.getPlayers()) {
+			if (!p2.equals(p) && !p2.isNeutral()) {
+				opponentUnitsAllGame = p2.getUnits();
+			}
+		}
+		if (opponentUnitsAllGame == null) {
+			LOGGER.severe("Didn't find opponent units for player " + p.playerReplayIdDb);
+			return null;
+		}
+
+		Map<UnitType, Integer> unitTypeCounts = p.getUnitTypeCountsExisting(act.frame);
+
+		Set<Unit> seenOpponentUnits = opponentUnitsAllGame.stream()
+				.filter(u -> p.hasSeen(u, act.frame))
+				.collect(Collectors.toSet());
+		Map<UnitType, Integer> opponentUnitTypeCounts = opponentUnitsAllGame.stream()
+				.filter(u -> seenOpponentUnits.contains(u))
+				.filter(u -> u.isExisting(act.frame))
+				.collect(Collectors.groupingBy(
+						Unit::getType,
+						Util.countingInt()));
+
+		Resources r = p.getResources(act.frame);
+		return new State(map, r, unitTypeCounts, opponentUnitTypeCounts);
+	}
+
+	/** Number of states stored */
+	public int size() {
+		return size;
+	}
+
+	/** The stored state at the action, or null if there is none */
+	public State get(Action a) {
+		int slot = find(keys, keyOf(a));
+		if (keys[slot] == EMPTY) {
+			return null;
+		}
+		int i = offsets[slot];
+		ScMap map = maps.get(data[i++]);
+		Resources r = new Resources(data[i], data[i + 1], data[i + 2], data[i + 3], data[i + 4],
+				data[i + 5], data[i + 6]);
+		i += 7;
+		Map<UnitType, Integer> unitTypeCounts = new HashMap<>();
+		i = readCounts(i, unitTypeCounts);
+		Map<UnitType, Integer> opponentUnitTypeCounts = new HashMap<>();
+		readCounts(i, opponentUnitTypeCounts);
+		return new State(map, r, unitTypeCounts, opponentUnitTypeCounts);
+	}
+
+	private int readCounts(int i, Map<UnitType, Integer> counts) {
+		int n = data[i++];
+		for (int end = i + 2 * n; i < end; i += 2) {
+			counts.put(UnitTypes.getUnitType(data[i]), data[i + 1]);
+		}
+		return i;
+	}
+
+	/** Slot holding the key, or the empty slot where it would go */
+	private static int find(long[] keys, long key) {
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	public void save(File file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(maps.size());
+			for (ScMap map : maps.values()) {
+				out.writeInt(map.dbMapId);
+				out.writeUTF(map.mapName);
+				out.writeInt(map.numStartPos);
+				out.writeInt(map.xSize);
+				out.writeInt(map.ySize);
+			}
+			out.writeInt(size);
+			out.writeInt(data.length);
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] != EMPTY) {
+					out.writeLong(keys[slot]);
+					out.writeInt(offsets[slot]);
+				}
+			}
+			for (int d : data) {
+				out.writeInt(d);
+			}
+		}
+		LOGGER.info("Saved " + size + " states to " + file);
+	}
+
+	public static StateStore load(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a state store file: " + file);
+			}
+			Map<Integer, ScMap> maps = new HashMap<>();
+			int numMaps = in.readInt();
+			for (int m = 0; m < numMaps; m++) {
+				ScMap map = new ScMap(in.readInt(), in.readUTF(), in.readInt(), in.readInt(),
+						in.readInt());
+				maps.put(map.dbMapId, map);
+			}
+			int size = in.readInt();
+			int[] data = new int[in.readInt()];
+			long[] keys = new long[tableSize(size)];
+			Arrays.fill(keys, EMPTY);
+			int[] offsets = new int[keys.length];
+			for (int n = 0; n < size; n++) {
+				long key = in.readLong();
+				int slot = find(keys, key);
+				keys[slot] = key;
+				offsets[slot] = in.readInt();
+			}
+			for (int i = 0; i < data.length; i++) {
+				data[i] = in.readInt();
+			}
+			LOGGER.info("Loaded " + size + " states from " + file);
+			return new StateStore(maps, keys, offsets, data, size);
+		}
+	}
+
+	/** Power of two table size with a load factor of at most 0.5 */
+	private static int tableSize(int size) {
+		return Integer.highestOneBit(Math.max(2, size) * 2 - 1) * 2;
+	}
+
+	/**
+	 * The state of the game from one player's point of view: the map, their resources, the number
+	 * of each type of unit they have, and the number of each type of opponent unit they have seen
+	 * that still exists.
+	 */
+	public static class State {
+		public final ScMap map;
+		public final Resources resources;
+		public final Map<UnitType, Integer> unitTypeCounts;
+		public final Map<UnitType, Integer> opponentUnitTypeCounts;
+
+		public State(ScMap map, Resources resources, Map<UnitType, Integer> unitTypeCounts,
+				Map<UnitType, Integer> opponentUnitTypeCounts) {
+			this.map = map;
+			this.resources = resources;
+			this.unitTypeCounts = Collections.unmodifiableMap(unitTypeCounts);
+			this.opponentUnitTypeCounts = Collections.unmodifiableMap(opponentUnitTypeCounts);
+		}
+	}
+
+	/** Collects states, then packs them into a store */
+	private static class Builder {
+		private final Map<Integer, ScMap> maps = new HashMap<>();
+		private long[] keys = new long[1024];
+		private int[] offsets = new int[1024];
+		private int size = 0;
+		private int[] data = new int[16 * 1024];
+		private int dataLength = 0;
+
+		/** Add the state at each of the player's strategic actions and events */
+		void addPlayer(ScMap map, PlayerReplaySnapshot player, PlayerReplaySnapshot opponent) {
+			maps.put(map.dbMapId, map);
+			GameStateCursor cursor = new GameStateCursor(player, opponent);
+			for (Action a : player.getStrategicActionsAndEvents()) {
+				cursor.advanceTo(a.frame);
+				Resources r = cursor.getResources();
+				if (r == null) {
+					LOGGER.warning("No resources for player " + player.player.playerReplayIdDb
+							+ " in frame " + a.frame);
+					continue;
+				}
+				add(keyOf(a), map, r, cursor.getUnitTypeCounts(),
+						cursor.getOpponentUnitTypeCounts());
+			}
+		}
+
+		void add(long key, ScMap map, Resources r, Map<UnitType, Integer> unitTypeCounts,
+				Map<UnitType, Integer> opponentUnitTypeCounts) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+			}
+			keys[size] = key;
+			offsets[size] = dataLength;
+			size++;
+			put(map.dbMapId);
+			put(r.frame);
+			put(r.minerals);
+			put(r.gas);
+			put(r.supply);
+			put(r.totalMinerals);
+			put(r.totalGas);
+			put(r.totalSupply);
+			putCounts(unitTypeCounts);
+			putCounts(opponentUnitTypeCounts);
+		}
+
+		private void putCounts(Map<UnitType, Integer> counts) {
+			put(counts.size());
+			for (Map.Entry<UnitType, Integer> e : counts.entrySet()) {
+				put(e.getKey().getID());
+				put(e.getValue());
+			}
+		}
+
+		private void put(int value) {
+			if (dataLength == data.length) {
+				data = Arrays.copyOf(data, dataLength * 2);
+			}
+			data[dataLength++] = value;
+		}
+
+		StateStore build() {
+			long[] table = new long[tableSize(size)];
+			Arrays.fill(table, EMPTY);
+			int[] tableOffsets = new int[table.length];
+			int unique = 0;
+			for (int n = 0; n < size; n++) {
+				int slot = find(table, keys[n]);
+				if (table[slot] == EMPTY) {
+					unique++;
+				}
+				table[slot] = keys[n];
+				tableOffsets[slot] = offsets[n];
+			}
+			return new StateStore(maps, table, tableOffsets, Arrays.copyOf(data, dataLength),
+					unique);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package bt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Iterative walks over a tree of {@link BtNode}s, visiting each node once. The walks use an
+ * explicit stack or queue rather than recursion, so they work on trees of any depth, and iterate
+ * children with {@link BtNode#forEachChild(Consumer)} so no child lists are copied.
+ */
+public class TreeWalker {
+
+	/** Callbacks for a depth-first walk */
+	public static interface Visitor {
+		/** Called when a node is first reached. Return false to skip its children. */
+		boolean enter(BtNode node);
+
+		/** Called after all the children of an entered node have been walked */
+		default void exit(BtNode node) {}
+
+		/** Called each time a node that has already been entered is reached again */
+		default void revisit(BtNode node) {}
+	}
+
+	/** Callback for a level-order walk */
+	@FunctionalInterface
+	public static interface LevelVisitor {
+		void visit(BtNode node, int depth);
+	}
+
+	/** Tracks which nodes a walk has visited, eg. a {@link NodeIdSet} */
+	public static interface VisitedSet {
+		/** Mark the node visited, returning false if it already was */
+		boolean add(BtNode node);
+
+		boolean contains(BtNode node);
+	}
+
+	/** A set for tracking visited nodes, which compares nodes by identity */
+	public static Set<BtNode> newVisitedSet() {
+		return Collections.newSetFromMap(new IdentityHashMap<>());
+	}
+
+	/** Use a set of nodes for tracking visited nodes, so it can be checked after the walk */
+	public static VisitedSet asVisitedSet(Set<BtNode> set) {
+		return new VisitedSet() {
+			@Override
+			public boolean add(BtNode node) {
+				return set.add(node);
+			}
+
+			@Override
+			public boolean contains(BtNode node) {
+				return set.contains(node);
+			}
+		};
+	}
+
+	/**
+	 * Depth-first walk from the given node, in the same order as recursing through
+	 * {@link BtNode#getChildren()}. Nodes already in <code>visited</code> are not entered, and
+	 * every entered node is added to it.
+	 */
+	public static void walk(BtNode root, VisitedSet visited, Visitor visitor) {
+		ArrayList<BtNode> stack = new ArrayList<>();
+		// Stack entries that mark the end of a node's children rather than a node to enter
+		ArrayList<Boolean> exits = new ArrayList<>();
+		Consumer<BtNode> push = child -> {
+			stack.add(child);
+			exits.add(Boolean.FALSE);
+		};
+		push.accept(root);
+		while (!stack.isEmpty()) {
+			int top = stack.size() - 1;
+			BtNode node = stack.remove(top);
+			if (exits.remove(top)) {
+				visitor.exit(node);
+			} else if (!visited.add(node)) {
+				visitor.revisit(node);
+			} else if (visitor.enter(node)) {
+				stack.add(node);
+				exits.add(Boolean.TRUE);
+				int start = stack.size();
+				node.forEachChild(push);
+				// Reverse the children so the first is on top
+				for (int i = start, j = stack.size() - 1; i < j; i++, j--) {
+					stack.set(i, stack.set(j, stack.get(i)));
+				}
+			}
+		}
+	}
+
+	public static void walk(BtNode root, Set<BtNode> visited, Visitor visitor) {
+		walk(root, asVisitedSet(visited), visitor);
+	}
+
+	public static void walk(BtNode root, Visitor visitor) {
+		walk(root, newVisitedSet(), visitor);
+	}
+
+	/** Visit each node before its children. See {@link #walk(BtNode, VisitedSet, Visitor)}. */
+	public static void preOrder(BtNode root, VisitedSet visited, Consumer<BtNode> action) {
+		walk(root, visited, node -> {
+			action.accept(node);
+			return true;
+		});
+	}
+
+	public static void preOrder(BtNode root, Set<BtNode> visited, Consumer<BtNode> action) {
+		preOrder(root, asVisitedSet(visited), action);
+	}
+
+	public static void preOrder(BtNode root, Consumer<BtNode> action) {
+		preOrder(root, newVisitedSet(), action);
+	}
+
+	/** Visit each node after its children. See {@link #walk(BtNode, VisitedSet, Visitor)}. */
+	public static void postOrder(BtNode root, Consumer<BtNode> action) {
+		walk(root, new Visitor() {
+			@Override
+			public boolean enter(BtNode node) {
+				return true;
+			}
+
+			@Override
+			public void exit(BtNode node) {
+				action.accept(node);
+			}
+		});
+	}
+
+	/**
+	 * Breadth-first walk, visiting each node once with the depth it is first found at (the root
+	 * is depth 0). Nodes deeper than <code>maxDepth</code> are not visited.
+	 */
+	public static void levelOrder(BtNode root, int maxDepth, LevelVisitor visitor) {
+		Set<BtNode> visited = newVisitedSet();
+		ArrayDeque<BtNode> queue = new ArrayDeque<>();
+		visited.add(root);
+		queue.add(root);
+		int depth = 0;
+		// Nodes left at the current depth
+		int remaining = 1;
+		Consumer<BtNode> enqueue = child -> {
+			if (visited.add(child)) {
+				queue.add(child);
+			}
+		};
+		while (!queue.isEmpty() && depth <= maxDepth) {
+			BtNode node = queue.poll();
+			visitor.visit(node, depth);
+			node.forEachChild(enqueue);
+			if (--remaining == 0) {
+				depth++;
+				remaining = queue.size();
+			}
+		}
+	}
+}
@@ -14,12 +14,28 @@ import bt.BtSelNode;
 public class ActionBtNode extends BtNode implements NodeWithActions {
 	private static final Logger LOGGER = Logger.getLogger(ActionBtNode.class.getName());
 	
-	private final List<Action> actions;
+	/** The actions as objects, or null if they are packed */
+	private List<Action> actions = null;
+	/** The actions packed into primitive arrays, or null if they are stored as objects */
+	private PackedActions packed = null;
 	private final long hash;
 	
 	public ActionBtNode(Action a) {
-		actions = new ArrayList<>(1);
-		actions.add(a);
+		this(a, false);
+	}
+	
+	/**
+	 * Construct from one action. If <code>pack</code> is true, this node and any merged into it
+	 * store their actions in primitive arrays rather than as objects, which saves a lot of memory
+	 * in big trees, but creates new Action objects whenever they are retrieved.
+	 */
+	public ActionBtNode(Action a, boolean pack) {
+		if (pack) {
+			packed = new PackedActions(a);
+		} else {
+			actions = new ArrayList<>(1);
+			actions.add(a);
+		}
 		hash = SimilarityMetrics.exactActionHash(a);
 	}
 	
@@ -36,25 +52,49 @@ public class ActionBtNode extends BtNode implements NodeWithActions {
 	/** Copy constructor. */
 	public ActionBtNode(ActionBtNode o) {
 		super(o);
-		// Ensure all actions have the same action hash
-		actions = new ArrayList<>(o.actions.size());
 		hash = o.hash;
-		for (Action a : o.actions) {
-			add(a);
+		if (o.packed != null) {
+			packed = new PackedActions(o.packed);
+		} else {
+			// Ensure all actions have the same action hash
+			actions = new ArrayList<>(o.actions.size());
+			for (Action a : o.actions) {
+				add(a);
+			}
 		}
 	}
 
 	@Override
 	public List<Action> getActions() {
 		// All actions have the same hash, might have different specifics
+		if (packed != null) {
+			return packed.asList();
+		}
 		return Collections.unmodifiableList(actions);
 	}
 	
+	@Override
+	public int getNumActions() {
+		return packed != null ? packed.size() : actions.size();
+	}
+	
 	@Override
 	public Action getRandomAction() {
 		Random r = new Random();
-		int idx = r.nextInt(actions.size());
-		return actions.get(idx);
+		int idx = r.nextInt(getNumActions());
+		return packed != null ? packed.get(idx) : actions.get(idx);
+	}
+	
+	/** Any node with the same action hash might merge with this one */
+	@Override
+	public long getMergeSignature() {
+		return getActionHash();
+	}
+	
+	/** Action nodes merge exactly when their action hashes match */
+	@Override
+	public boolean isMergeableBySignature() {
+		return true;
 	}
 	
 	@Override
@@ -62,37 +102,48 @@ public class ActionBtNode extends BtNode implements NodeWithActions {
 		return hash;
 	}
 	
-	public void add(Action a) {
+	public synchronized void add(Action a) {
 		if (SimilarityMetrics.exactActionHash(a) != hash) {
 			LOGGER.warning("Tried to add action " + a + " to ActionsBtNode with actions "
-					+ actions.get(0));
+					+ getFirstAction());
 			return;
 		}
-		actions.add(a);
+		if (packed != null) {
+			packed.add(a);
+		} else {
+			actions.add(a);
+		}
+	}
+	
+	private Action getFirstAction() {
+		return packed != null ? packed.getFirst() : actions.get(0);
 	}
 
 	@Override
 	public String toString() {
-		return "ActionBtNode{" + actions.get(0) + ", " + actions.size() + "}";
+		return "ActionBtNode{" + getFirstAction() + ", " + getNumActions() + "}";
 	}
 	
 	@Override
 	public String toShortString() {
-		return actions.get(0).getTargetIdAsString() + " x" + actions.size()
+		return getFirstAction().getTargetIdAsString() + " x" + getNumActions()
 				+ (hasBeenMerged() ? "(M)" : "");
 	}
 
 	@Override
-	public BtNode merge(BtNode o) {
+	public synchronized BtNode merge(BtNode o) {
 		checkNotMerged();
 		o.checkNotMerged();
 		if (this == o) return this;
 		
 		if (canMergeIntoOne(o)) {
 			o.setMergedInto(this);
-			List<Action> oActions = ((NodeWithActions) o).getActions();
-			for (Action a : oActions) {
-				add(a);
+			if (packed != null && o instanceof ActionBtNode && ((ActionBtNode) o).packed != null) {
+				packed.addAll(((ActionBtNode) o).packed);
+			} else {
+				for (Action a : ((NodeWithActions) o).getActions()) {
+					add(a);
+				}
 			}
 			setWeight(getWeight() + o.getWeight());
 			return this;
@@ -132,16 +183,4 @@ public class ActionBtNode extends BtNode implements NodeWithActions {
 		return new ActionBtNode(this);
 	}
 	
-	@Override
-	public void updateChildren(Set<BtNode> seen) {
-		// No children, nothing to do
-		return;
-	}
-	
-	@Override
-	public void mergeChildren(Set<BtNode> seen) {
-		// No children, nothing to do
-		return;
-	}
-	
 }
@@ -37,11 +37,22 @@ public class CaseBtNode extends BtNode implements NodeWithActions {
 		return Arrays.asList(new Action[] {action});
 	}
 	
+	@Override
+	public int getNumActions() {
+		return 1;
+	}
+	
 	@Override
 	public Action getRandomAction() {
 		return action;
 	}
 	
+	/** Any node with the same action hash might merge with this one */
+	@Override
+	public long getMergeSignature() {
+		return getActionHash();
+	}
+	
 	@Override
 	public long getActionHash() {
 		return SimilarityMetrics.exactActionHash(action);
@@ -87,16 +98,4 @@ public class CaseBtNode extends BtNode implements NodeWithActions {
 		throw new RuntimeException("Not implemented");
 	}
 	
-	@Override
-	public void updateChildren(Set<BtNode> seen) {
-		// No children, nothing to do
-		return;
-	}
-	
-	@Override
-	public void mergeChildren(Set<BtNode> seen) {
-		// No children, nothing to do
-		return;
-	}
-	
 }
@@ -8,6 +8,8 @@ import scdb.Action;
 public interface NodeWithActions {
 	public List<Action> getActions();
 	
+	public int getNumActions();
+	
 	public Action getRandomAction();
 	
 	public long getActionHash();
@@ -0,0 +1,136 @@
+package bt.sc;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import scdb.Action;
+import scdb.ActionyEvent;
+
+/**
+ * A list of actions that all have the same action hash, stored as parallel primitive arrays
+ * rather than one {@link Action} object each. The fields covered by the hash (target, order and
+ * command type) are shared, so only the per-observation fields are stored. Actions are created
+ * again when they're asked for, so they aren't the same instances that were added.
+ */
+class PackedActions {
+	/** All actions share this one's targetId, orderType and unitCommandType */
+	private final Action first;
+	private int size = 0;
+	/** actionIdDb, or ~eventIdDb for ActionyEvents */
+	private long[] ids;
+	private long[] playerReplayIds;
+	private int[] frames;
+	/** unitGroupId, or unitIdDb for ActionyEvents */
+	private long[] unitGroupIds;
+	private int[] targetXs;
+	private int[] targetYs;
+	private final BitSet delayed = new BitSet();
+
+	PackedActions(Action first) {
+		this.first = first;
+		ids = new long[1];
+		playerReplayIds = new long[1];
+		frames = new int[1];
+		unitGroupIds = new long[1];
+		targetXs = new int[1];
+		targetYs = new int[1];
+		add(first);
+	}
+
+	PackedActions(PackedActions toCopy) {
+		first = toCopy.first;
+		size = toCopy.size;
+		ids = Arrays.copyOf(toCopy.ids, size);
+		playerReplayIds = Arrays.copyOf(toCopy.playerReplayIds, size);
+		frames = Arrays.copyOf(toCopy.frames, size);
+		unitGroupIds = Arrays.copyOf(toCopy.unitGroupIds, size);
+		targetXs = Arrays.copyOf(toCopy.targetXs, size);
+		targetYs = Arrays.copyOf(toCopy.targetYs, size);
+		delayed.or(toCopy.delayed);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** The first action added, which is kept as an object */
+	public Action getFirst() {
+		return first;
+	}
+
+	/** Add an action. Its action hash must match the others. */
+	public void add(Action a) {
+		ensureCapacity(size + 1);
+		if (a instanceof ActionyEvent) {
+			ids[size] = ~((ActionyEvent) a).eventIdDb;
+			unitGroupIds[size] = ((ActionyEvent) a).unitIdDb;
+		} else {
+			ids[size] = a.actionIdDb;
+			unitGroupIds[size] = a.unitGroupId;
+		}
+		playerReplayIds[size] = a.playerReplayIdDb;
+		frames[size] = a.frame;
+		targetXs[size] = a.targetX;
+		targetYs[size] = a.targetY;
+		delayed.set(size, a.delayed);
+		size++;
+	}
+
+	/** Add all actions from another list with the same action hash, without creating them */
+	public void addAll(PackedActions o) {
+		ensureCapacity(size + o.size);
+		System.arraycopy(o.ids, 0, ids, size, o.size);
+		System.arraycopy(o.playerReplayIds, 0, playerReplayIds, size, o.size);
+		System.arraycopy(o.frames, 0, frames, size, o.size);
+		System.arraycopy(o.unitGroupIds, 0, unitGroupIds, size, o.size);
+		System.arraycopy(o.targetXs, 0, targetXs, size, o.size);
+		System.arraycopy(o.targetYs, 0, targetYs, size, o.size);
+		for (int i = o.delayed.nextSetBit(0); i >= 0; i = o.delayed.nextSetBit(i + 1)) {
+			delayed.set(size + i);
+		}
+		size += o.size;
+	}
+
+	/** Create the action at the given index */
+	public Action get(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index " + i + ", size " + size);
+		}
+		if (ids[i] < 0) {
+			return new ActionyEvent(~ids[i], playerReplayIds[i], frames[i], first.targetId,
+					unitGroupIds[i]);
+		}
+		return new Action(ids[i], playerReplayIds[i], frames[i], first.unitCommandType.getID(),
+				first.orderType.getID(), unitGroupIds[i], first.targetId, targetXs[i],
+				targetYs[i], delayed.get(i));
+	}
+
+	/** A read-only view which creates each action as it is accessed */
+	public List<Action> asList() {
+		return new AbstractList<Action>() {
+			@Override
+			public Action get(int index) {
+				return PackedActions.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > ids.length) {
+			int newLength = Math.max(capacity, ids.length * 2);
+			ids = Arrays.copyOf(ids, newLength);
+			playerReplayIds = Arrays.copyOf(playerReplayIds, newLength);
+			frames = Arrays.copyOf(frames, newLength);
+			unitGroupIds = Arrays.copyOf(unitGroupIds, newLength);
+			targetXs = Arrays.copyOf(targetXs, newLength);
+			targetYs = Arrays.copyOf(targetYs, newLength);
+		}
+	}
+}
@@ -64,28 +64,29 @@ public class Action {
 	
 	/** Get the PlayerReplay that issued this Action */
 	public PlayerReplay getPlayerReplay() throws SQLException {
-		DbConnection dbc = DbInterface.getInstance().getDbc();
-		
-		ResultSet rs = dbc.executeQuery("SELECT * FROM playerreplay WHERE playerReplayId=?",
-				playerReplayIdDb);
-		if (rs.next()) {
-			return new PlayerReplay(rs);
-		} else {
-			throw new SQLException("No playerReplay found for action " + actionIdDb);
-		}
+		return PlayerReplay.fromId(playerReplayIdDb);
 	}
 	
 	/** The unit(s) that the action was issued to. */
 	public List<Unit> getUnitGroup() {
-		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<Unit> units = new ArrayList<>();
-		try (ResultSet rs = dbc.executeQuery("SELECT * FROM unit NATURAL JOIN unitgroup "
-				+ "WHERE UnitGroupID=?", unitGroupId); ) {
-			while (rs.next()) {
-				units.add(new Unit(rs));
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			try {
+				units = cache.getUnitGroup(playerReplayIdDb, unitGroupId);
+			} catch (SQLException e) {
+				LOGGER.log(Level.SEVERE, "Error getting unitGroup " + unitGroupId, e);
+			}
+		} else {
+			DbConnection dbc = DbInterface.getInstance().getDbc();
+			try (ResultSet rs = dbc.executeQuery("SELECT * FROM unit NATURAL JOIN unitgroup "
+					+ "WHERE UnitGroupID=?", unitGroupId); ) {
+				while (rs.next()) {
+					units.add(new Unit(rs));
+				}
+			} catch (SQLException e) {
+				LOGGER.log(Level.SEVERE, "Error getting unitGroup " + unitGroupId, e);
 			}
-		} catch (SQLException e) {
-			LOGGER.log(Level.SEVERE, "Error getting unitGroup " + unitGroupId, e);
 		}
 		/*
 		 * Some units in the group may no longer exist (because this info isn't known when replays
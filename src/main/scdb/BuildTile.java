@@ -2,6 +2,9 @@ package scdb;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -50,6 +53,10 @@ public class BuildTile {
 	/** Gets the build tile with the given ID or throws an exception. */
 	public static BuildTile getBuildTileById(long buildTileId)
 			throws SQLException {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			return cache.getBuildTileById(buildTileId);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		try (ResultSet rs = dbc.executeQuery(
 				"SELECT * FROM buildTile WHERE buildTileId=?", buildTileId) ) {
@@ -62,6 +69,31 @@ public class BuildTile {
 		throw new SQLException("No buildTile found with id " + buildTileId);
 	}
 	
+	/**
+	 * Gets many build tiles by ID in a few queries. IDs which aren't found are missing from the
+	 * result.
+	 */
+	public static Map<Long, BuildTile> getBuildTilesById(Collection<Long> buildTileIds)
+			throws SQLException {
+		Map<Long, BuildTile> result = new HashMap<>();
+		if (DbInterface.getInstance().getReplayCache() != null) {
+			for (long id : buildTileIds) {
+				try {
+					result.put(id, getBuildTileById(id));
+				} catch (SQLException e) {
+					LOGGER.fine(e.getMessage());
+				}
+			}
+			return result;
+		}
+		DbConnection dbc = DbInterface.getInstance().getDbc();
+		for (BuildTile t : dbc.queryIn("SELECT * FROM buildTile WHERE buildTileId IN (%s)",
+				buildTileIds, BuildTile::new)) {
+			result.put(t.buildTileIdDb, t);
+		}
+		return result;
+	}
+	
 	@Override
 	public int hashCode() {
 		return (int) (buildTileIdDb ^ (buildTileIdDb >>> 32));
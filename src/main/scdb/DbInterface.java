@@ -1,16 +1,27 @@
 package scdb;
 
+import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import util.DbConnection;
+import util.DbConnectionPool;
+import util.Util;
 
 /**
- * Provide a nice interface for reading from the database. Note that items are not cached at all, so
- * if you get objects from multiple calls they will not be references to the same objects even if
- * they represent the same thing, but they can be compared correctly using equals.
+ * Provide a nice interface for reading from the database. Replays, players, maps and units looked
+ * up by ID are kept in size-bounded {@link EntityCache}s (<code>entity_cache_size</code> of each),
+ * so repeated lookups of the same object usually return the same instance. Other queries (eg. all
+ * the units of a player) still build new objects each time, so objects should always be compared
+ * using equals rather than by reference.<br>
+ * Can be used from multiple threads: each thread transparently gets its own connection from a pool
+ * (see {@link DbConnectionPool}). Worker threads should call {@link #releaseDbc()} when they are
+ * finished with the database so their connection can be reused.<br>
+ * If <code>local_cache_dir</code> is set, replay data is read from a local {@link ReplayCache}
+ * instead of the database (see {@link ReplayCacheExporter}).
  * 
  * @author Glen Robertson
  * 
@@ -24,22 +35,54 @@ public class DbInterface {
 		return instance;
 	}
 	
-	private final DbConnection dbc;
+	/** Properties file to load */
+	private static final String PROPERTIES_FILENAME = "databaseConfig.properties";
+	
+	private final DbConnectionPool pool;
+	/** Local copy of the replay data to use instead of the DB, or null */
+	private final ReplayCache replayCache;
+	
+	private final EntityCache<Integer, Replay> replays;
+	private final EntityCache<Long, PlayerReplay> playerReplays;
+	private final EntityCache<Integer, ScMap> maps;
+	private final EntityCache<Long, Unit> units;
 	
 	/** Never actually throws the exception, will exit() instead */
 	private DbInterface() {
-		DbConnection dbc = null;
+		DbConnectionPool pool = null;
+		ReplayCache replayCache = null;
+		int entityCacheSize = 0;
 		try {
-			dbc = new DbConnection();
+			Properties props = Util.loadProperties(PROPERTIES_FILENAME);
+			entityCacheSize = Integer.parseInt(props.getProperty("entity_cache_size", "10000"));
+			int poolSize = Integer.parseInt(props.getProperty("db_pool_size",
+					String.valueOf(Runtime.getRuntime().availableProcessors())));
+			pool = new DbConnectionPool(poolSize);
+			String cacheDir = props.getProperty("local_cache_dir", "").trim();
+			if (!cacheDir.isEmpty()) {
+				replayCache = ReplayCache.open(new File(cacheDir));
+			} else {
+				// Connect straight away so any problems are found early, then give the connection
+				// back so it doesn't hold one of the pool's slots for good
+				pool.getConnection();
+				pool.release();
+			}
 		} catch (IOException e) {
-			LOGGER.log(Level.SEVERE, "Problem loading properties file", e);
+			LOGGER.log(Level.SEVERE, "Problem loading properties file or replay cache", e);
+			pool = null;
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE, "Problem connecting to database", e);
+			pool = null;
 		}
-		if (dbc == null) {
+		if (pool == null) {
 			System.exit(1);
 		}
-		this.dbc = dbc;
+		this.pool = pool;
+		this.replayCache = replayCache;
+		replays = new EntityCache<>("Replay", entityCacheSize);
+		playerReplays = new EntityCache<>("PlayerReplay", entityCacheSize);
+		maps = new EntityCache<>("ScMap", entityCacheSize);
+		units = new EntityCache<>("Unit", entityCacheSize);
 		try {
 			OfflineJNIBWAPI.loadOfflineJNIBWAPIData();
 		} catch (IOException e) {
@@ -47,8 +90,59 @@ public class DbInterface {
 		}
 	}
 	
+	/**
+	 * Get the database connection for the current thread. The same connection is returned until
+	 * the thread calls {@link #releaseDbc()}.
+	 */
 	public DbConnection getDbc() {
-		return dbc;
+		try {
+			return pool.getConnection();
+		} catch (IOException | SQLException e) {
+			LOGGER.log(Level.SEVERE, "Problem getting a database connection", e);
+			throw new RuntimeException("Unable to get a database connection", e);
+		}
+	}
+	
+	/**
+	 * Return the current thread's connection to the pool. ResultSets obtained through it must not
+	 * be used afterwards.
+	 */
+	public void releaseDbc() {
+		pool.release();
+	}
+	
+	/** Maximum number of connections that can be open at once */
+	public int getMaxConnections() {
+		return pool.getMaxSize();
+	}
+	
+	/** The local copy of the replay data in use instead of the DB, or null if there is none */
+	public ReplayCache getReplayCache() {
+		return replayCache;
+	}
+	
+	EntityCache<Integer, Replay> getReplayEntityCache() {
+		return replays;
+	}
+	
+	EntityCache<Long, PlayerReplay> getPlayerReplayEntityCache() {
+		return playerReplays;
+	}
+	
+	EntityCache<Integer, ScMap> getMapEntityCache() {
+		return maps;
+	}
+	
+	EntityCache<Long, Unit> getUnitEntityCache() {
+		return units;
+	}
+	
+	/** Log the hit rates of the entity caches */
+	public void logCacheStats() {
+		LOGGER.info(replays.toString());
+		LOGGER.info(playerReplays.toString());
+		LOGGER.info(maps.toString());
+		LOGGER.info(units.toString());
 	}
 
 }
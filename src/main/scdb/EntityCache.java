@@ -0,0 +1,90 @@
+package scdb;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded identity map for one type of DB object: while an object is in the cache, looking
+ * it up again returns the same instance rather than querying the DB and building a new one. The
+ * least recently used object is evicted when the cache is full. Thread-safe; counts hits and misses
+ * so the size can be tuned.
+ */
+public class EntityCache<K, V> {
+	/** Loads an object that isn't in the cache */
+	@FunctionalInterface
+	public static interface Loader<K, V> {
+		V load(K key) throws SQLException;
+	}
+
+	private final String name;
+	private final int maxSize;
+	/** Guarded by this */
+	private final LinkedHashMap<K, V> map;
+	private long hits = 0;
+	private long misses = 0;
+
+	public EntityCache(String name, int maxSize) {
+		this.name = name;
+		this.maxSize = maxSize;
+		map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > EntityCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the cached object for the key, or load and cache it. The lock isn't held while loading,
+	 * so if two threads miss at once both load, but only the first object stored is returned.
+	 */
+	public V get(K key, Loader<K, V> loader) throws SQLException {
+		synchronized (this) {
+			V value = map.get(key);
+			if (value != null) {
+				hits++;
+				return value;
+			}
+			misses++;
+		}
+		return intern(key, loader.load(key));
+	}
+
+	/**
+	 * Store the object unless one is already cached for the key, and return the cached one. Use
+	 * for objects created by other queries so later lookups share them.
+	 */
+	public synchronized V intern(K key, V value) {
+		if (value == null || maxSize <= 0) {
+			return value;
+		}
+		V existing = map.get(key);
+		if (existing != null) {
+			return existing;
+		}
+		map.put(key, value);
+		return value;
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long total = hits + misses;
+		return String.format("%s cache: %d/%d entries, %d hits, %d misses (%.1f%% hit rate)",
+				name, map.size(), maxSize, hits, misses, total == 0 ? 0.0 : 100.0 * hits / total);
+	}
+}
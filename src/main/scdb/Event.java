@@ -2,6 +2,11 @@ package scdb;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,19 +44,66 @@ public class Event {
 	
 	/** Returns the unit involved in this event, or null if no unit was involved (nukes). */
 	public Unit getUnit() {
-		DbConnection dbc = DbInterface.getInstance().getDbc();
 		if (unitIdDb == -1)
 			return null;
+		Unit u = null;
+		try {
+			u = DbInterface.getInstance().getUnitEntityCache().get(unitIdDb, Event::loadUnit);
+		} catch (SQLException e) {
+			LOGGER.log(Level.SEVERE, "Error retrieving unit for event " + eventIdDb, e);
+		}
+		if (u == null) {
+			LOGGER.severe("No unit found with id " + unitIdDb + " for event " + eventIdDb);
+		}
+		return u;
+	}
+	
+	/** Load the unit with the given ID, or null if there is none */
+	private static Unit loadUnit(long unitIdDb) throws SQLException {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			return cache.getUnit(unitIdDb);
+		}
+		DbConnection dbc = DbInterface.getInstance().getDbc();
 		try (ResultSet rs = dbc.executeQuery(
 				"SELECT * FROM unit WHERE unitId=?", unitIdDb) ) {
-			if (rs.next()) {
-				return new Unit(rs);
+			return rs.next() ? new Unit(rs) : null;
+		}
+	}
+	
+	/**
+	 * Get the units involved in many events in a few queries. Events with no unit (nukes) are
+	 * missing from the result.
+	 */
+	public static Map<Event, Unit> getUnits(Collection<Event> events) {
+		Map<Event, Unit> result = new HashMap<>();
+		Map<Long, List<Event>> eventsByUnitId = new HashMap<>();
+		for (Event e : events) {
+			if (e.unitIdDb != -1) {
+				eventsByUnitId.computeIfAbsent(e.unitIdDb, k -> new ArrayList<>()).add(e);
+			}
+		}
+		if (DbInterface.getInstance().getReplayCache() != null) {
+			for (List<Event> unitEvents : eventsByUnitId.values()) {
+				Unit u = unitEvents.get(0).getUnit();
+				if (u != null) {
+					unitEvents.forEach(e -> result.put(e, u));
+				}
+			}
+			return result;
+		}
+		EntityCache<Long, Unit> entities = DbInterface.getInstance().getUnitEntityCache();
+		DbConnection dbc = DbInterface.getInstance().getDbc();
+		try {
+			for (Unit u : dbc.queryIn("SELECT * FROM unit WHERE unitId IN (%s)",
+					eventsByUnitId.keySet(), Unit::new)) {
+				Unit shared = entities.intern(u.unitIdDb, u);
+				eventsByUnitId.get(u.unitIdDb).forEach(e -> result.put(e, shared));
 			}
 		} catch (SQLException e) {
-			LOGGER.log(Level.SEVERE, "Error retrieving unit for event " + eventIdDb, e);
+			LOGGER.log(Level.SEVERE, "Error retrieving units for " + events.size() + " events", e);
 		}
-		LOGGER.severe("No unit found with id " + unitIdDb + " for event " + eventIdDb);
-		return null;
+		return result;
 	}
 	
 	/** Returns the build tile involved in this event (nukes only), or null otherwise. */
@@ -0,0 +1,223 @@
+package scdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jnibwapi.types.UnitType;
+import jnibwapi.types.UnitType.UnitTypes;
+import util.UnitAttributes.UnitAttribute;
+
+/**
+ * Reconstructs the game state seen by one player by sweeping forwards through the replay, rather
+ * than re-checking every unit at every point of interest. All of the relevant changes (the
+ * player's units appearing and disappearing, opponent units appearing and disappearing, opponent
+ * units first being seen, and resource changes) are merged into a single time-ordered stream when
+ * the cursor is created, and {@link #advanceTo(int)} applies them incrementally.<br>
+ * The state after <code>advanceTo(frame)</code> matches what would be found by querying the
+ * existence, visibility and resources of each unit in that frame.
+ */
+public class GameStateCursor {
+	private static final byte OWN_EXISTS = 0;
+	private static final byte OPP_EXISTS = 1;
+	private static final byte OPP_SEEN = 2;
+
+	private final Unit[] ownUnits;
+	private final Unit[] oppUnits;
+
+	/** Event times, in order */
+	private final int[] eventTimes;
+	private final byte[] eventKinds;
+	/** Index into ownUnits or oppUnits, depending on eventKinds */
+	private final int[] eventUnits;
+	private final int[] eventValues;
+	private int nextEvent = 0;
+
+	private final boolean[] ownExists;
+	private final boolean[] oppExists;
+	private final boolean[] oppSeen;
+	/** Counts indexed by UnitType ID */
+	private final int[] ownTypeCounts;
+	private final int[] oppTypeCounts;
+
+	private final Resources[] resources;
+	private int nextResources = 0;
+	private Resources currentResources = null;
+
+	private int frame = Integer.MIN_VALUE;
+
+	/**
+	 * @param player the player whose point of view is used
+	 * @param opponent the opponent whose units the player may see
+	 */
+	public GameStateCursor(PlayerReplaySnapshot player, PlayerReplaySnapshot opponent) {
+		ownUnits = player.getUnits().toArray(new Unit[0]);
+		oppUnits = opponent.getUnits().toArray(new Unit[0]);
+		ownExists = new boolean[ownUnits.length];
+		oppExists = new boolean[oppUnits.length];
+		oppSeen = new boolean[oppUnits.length];
+		int maxTypeId = 0;
+		for (Unit u : ownUnits) {
+			maxTypeId = Math.max(maxTypeId, u.getType().getID());
+		}
+		for (Unit u : oppUnits) {
+			maxTypeId = Math.max(maxTypeId, u.getType().getID());
+		}
+		ownTypeCounts = new int[maxTypeId + 1];
+		oppTypeCounts = new int[maxTypeId + 1];
+
+		// Gather all the events, then sort them by time
+		int numEvents = 0;
+		for (Unit u : ownUnits) {
+			numEvents += player.getTimeline(u).numChanges(UnitAttribute.Exists);
+		}
+		for (Unit u : oppUnits) {
+			numEvents += opponent.getTimeline(u).numChanges(UnitAttribute.Exists);
+			if (player.getFirstSeen(u) != -1) {
+				numEvents++;
+			}
+		}
+		int[] times = new int[numEvents];
+		byte[] kinds = new byte[numEvents];
+		int[] units = new int[numEvents];
+		int[] values = new int[numEvents];
+		int e = 0;
+		for (int i = 0; i < ownUnits.length; i++) {
+			UnitTimeline t = player.getTimeline(ownUnits[i]);
+			for (int c = 0; c < t.numChanges(UnitAttribute.Exists); c++, e++) {
+				times[e] = t.getChangeTime(UnitAttribute.Exists, c);
+				kinds[e] = OWN_EXISTS;
+				units[e] = i;
+				values[e] = t.getChangeValue(UnitAttribute.Exists, c);
+			}
+		}
+		for (int i = 0; i < oppUnits.length; i++) {
+			UnitTimeline t = opponent.getTimeline(oppUnits[i]);
+			for (int c = 0; c < t.numChanges(UnitAttribute.Exists); c++, e++) {
+				times[e] = t.getChangeTime(UnitAttribute.Exists, c);
+				kinds[e] = OPP_EXISTS;
+				units[e] = i;
+				values[e] = t.getChangeValue(UnitAttribute.Exists, c);
+			}
+			int seen = player.getFirstSeen(oppUnits[i]);
+			if (seen != -1) {
+				times[e] = seen;
+				kinds[e] = OPP_SEEN;
+				units[e] = i;
+				values[e] = 1;
+				e++;
+			}
+		}
+		// Sort by time, keeping the original order of events in the same frame (so the last
+		// change to a unit's attribute in a frame is still applied last)
+		long[] order = new long[numEvents];
+		for (int i = 0; i < numEvents; i++) {
+			order[i] = ((long) times[i] << 32) | i;
+		}
+		Arrays.sort(order);
+		eventTimes = new int[numEvents];
+		eventKinds = new byte[numEvents];
+		eventUnits = new int[numEvents];
+		eventValues = new int[numEvents];
+		for (int i = 0; i < numEvents; i++) {
+			int idx = (int) order[i];
+			eventTimes[i] = times[idx];
+			eventKinds[i] = kinds[idx];
+			eventUnits[i] = units[idx];
+			eventValues[i] = values[idx];
+		}
+
+		resources = player.getResourceChanges().toArray(new Resources[0]);
+	}
+
+	/**
+	 * Apply all changes up to and including the given frame. Frames must not go backwards.
+	 */
+	public void advanceTo(int frame) {
+		if (frame < this.frame) {
+			throw new IllegalArgumentException("Cursor is at frame " + this.frame
+					+ ", can't go back to " + frame);
+		}
+		this.frame = frame;
+		while (nextEvent < eventTimes.length && eventTimes[nextEvent] <= frame) {
+			int u = eventUnits[nextEvent];
+			switch (eventKinds[nextEvent]) {
+			case OWN_EXISTS: {
+				boolean exists = eventValues[nextEvent] == 1;
+				if (exists != ownExists[u]) {
+					ownExists[u] = exists;
+					ownTypeCounts[ownUnits[u].getType().getID()] += exists ? 1 : -1;
+				}
+				break;
+			}
+			case OPP_EXISTS: {
+				boolean exists = eventValues[nextEvent] == 1;
+				if (exists != oppExists[u]) {
+					oppExists[u] = exists;
+					if (oppSeen[u]) {
+						oppTypeCounts[oppUnits[u].getType().getID()] += exists ? 1 : -1;
+					}
+				}
+				break;
+			}
+			case OPP_SEEN:
+				if (!oppSeen[u]) {
+					oppSeen[u] = true;
+					if (oppExists[u]) {
+						oppTypeCounts[oppUnits[u].getType().getID()]++;
+					}
+				}
+				break;
+			}
+			nextEvent++;
+		}
+		while (nextResources < resources.length && resources[nextResources].frame <= frame) {
+			currentResources = resources[nextResources];
+			nextResources++;
+		}
+	}
+
+	/** The frame the cursor was last advanced to */
+	public int getFrame() {
+		return frame;
+	}
+
+	/** The latest record of the player's resources, or null if there is none yet. */
+	public Resources getResources() {
+		return currentResources;
+	}
+
+	/** Count of each type of the player's units that currently exist. */
+	public Map<UnitType, Integer> getUnitTypeCounts() {
+		return toMap(ownTypeCounts);
+	}
+
+	/** Count of each type of opponent unit that currently exists and has been seen. */
+	public Map<UnitType, Integer> getOpponentUnitTypeCounts() {
+		return toMap(oppTypeCounts);
+	}
+
+	/** Opponent units that currently exist and have been seen by the player. */
+	public List<Unit> getSeenOpponentUnits() {
+		List<Unit> result = new ArrayList<>();
+		for (int i = 0; i < oppUnits.length; i++) {
+			if (oppSeen[i] && oppExists[i]) {
+				result.add(oppUnits[i]);
+			}
+		}
+		return result;
+	}
+
+	private static Map<UnitType, Integer> toMap(int[] typeCounts) {
+		Map<UnitType, Integer> result = new HashMap<>();
+		for (int id = 0; id < typeCounts.length; id++) {
+			if (typeCounts[id] > 0) {
+				result.put(UnitTypes.getUnitType(id), typeCounts[id]);
+			}
+		}
+		return result;
+	}
+
+}
@@ -3,9 +3,12 @@ package scdb;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -14,12 +17,22 @@ import java.util.stream.Collectors;
 import jnibwapi.types.RaceType;
 import jnibwapi.types.RaceType.RaceTypes;
 import jnibwapi.types.UnitCommandType.UnitCommandTypes;
+import jnibwapi.types.UnitType;
+import jnibwapi.types.UnitType.UnitTypes;
 import util.DbConnection;
 import util.UnitAttributes.UnitAttribute;
+import util.Util;
 
 public class PlayerReplay {
 	private static final Logger LOGGER = Logger.getLogger(PlayerReplay.class.getName());
 	
+	/** Events that look like actions (see {@link ActionyEvent}) for a given playerReplayId */
+	static final String ACTIONY_EVENTS_QUERY = "SELECT * FROM event"
+			+ " NATURAL JOIN playerreplay NATURAL JOIN unit"
+			+ " WHERE frame>0 AND (eventtypeid=12 OR eventtypeid=14)"
+			+ " AND playerreplayid=?"
+			+ " ORDER BY frame, eventid";
+	
 	// Unchanging data
 	public final int playerReplayIdDb;
 	public final String name;
@@ -47,6 +60,15 @@ public class PlayerReplay {
 	
 	/** Retrieve a PlayerReplay from its ID */
 	public static PlayerReplay fromId(long playerReplayIdDb) throws SQLException {
+		return DbInterface.getInstance().getPlayerReplayEntityCache()
+				.get(playerReplayIdDb, PlayerReplay::load);
+	}
+	
+	private static PlayerReplay load(long playerReplayIdDb) throws SQLException {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			return cache.getPlayerReplay(playerReplayIdDb);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		
 		ResultSet rs = dbc.executeQuery("SELECT * FROM playerreplay WHERE playerReplayId=?",
@@ -58,6 +80,34 @@ public class PlayerReplay {
 		}
 	}
 	
+	/**
+	 * Retrieve many PlayerReplays by ID in a few queries. IDs which aren't found are missing from
+	 * the result.
+	 */
+	public static Map<Long, PlayerReplay> fromIds(Collection<Long> playerReplayIds)
+			throws SQLException {
+		Map<Long, PlayerReplay> result = new HashMap<>();
+		EntityCache<Long, PlayerReplay> entities =
+				DbInterface.getInstance().getPlayerReplayEntityCache();
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			for (long id : playerReplayIds) {
+				try {
+					result.put(id, entities.intern(id, cache.getPlayerReplay(id)));
+				} catch (SQLException e) {
+					LOGGER.fine(e.getMessage());
+				}
+			}
+			return result;
+		}
+		DbConnection dbc = DbInterface.getInstance().getDbc();
+		for (PlayerReplay p : dbc.queryIn("SELECT * FROM playerreplay WHERE playerReplayId IN (%s)",
+				playerReplayIds, PlayerReplay::new)) {
+			result.put((long) p.playerReplayIdDb, entities.intern((long) p.playerReplayIdDb, p));
+		}
+		return result;
+	}
+	
 	/** Get all actions by this player, in frame order */
 	public List<Action> getActions() {
 		return getActions(0, Integer.MAX_VALUE);
@@ -67,19 +117,19 @@ public class PlayerReplay {
 	 * Get all actions by this player, in frame order, between frameStart and frameEnd (inclusive)
 	 */
 	public List<Action> getActions(int frameStart, int frameEnd) {
+		PlayerReplaySnapshot snapshot = getCachedSnapshot();
+		if (snapshot != null) {
+			return snapshot.getActions(frameStart, frameEnd);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<Action> actions = new ArrayList<>();
 		List<Object> data = new ArrayList<>();
 		data.add(playerReplayIdDb);
 		data.add(frameStart);
 		data.add(frameEnd);
-		ResultSet rs;
 		try {
-			rs = dbc.executeQuery("SELECT * FROM action WHERE playerReplayId=?"
-					+ " AND frame>=? AND frame<=? ORDER BY frame, actionid", data);
-			while (rs.next()) {
-				actions.add(new Action(rs));
-			}
+			actions = dbc.queryList("SELECT * FROM action WHERE playerReplayId=?"
+					+ " AND frame>=? AND frame<=? ORDER BY frame, actionid", data, Action::new);
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE, "Getting actions failed for player " + playerReplayIdDb, e);
 		}
@@ -88,20 +138,16 @@ public class PlayerReplay {
 	
 	/** Get list of events pretending to be actions! Hacky to avoid spamming clicks */
 	public List<ActionyEvent> getActionyEvents() {
+		PlayerReplaySnapshot snapshot = getCachedSnapshot();
+		if (snapshot != null) {
+			return new ArrayList<>(snapshot.getActionyEvents());
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<ActionyEvent> events = new ArrayList<>();
 		List<Object> data = new ArrayList<>();
 		data.add(playerReplayIdDb);
-		ResultSet rs;
 		try {
-			rs = dbc.executeQuery("SELECT * FROM event"
-					+ " NATURAL JOIN playerreplay NATURAL JOIN unit"
-					+ " WHERE frame>0 AND (eventtypeid=12 OR eventtypeid=14)"
-					+ " AND playerreplayid=?"
-					+ " ORDER BY frame, eventid", data);
-			while (rs.next()) {
-				events.add(new ActionyEvent(rs));
-			}
+			events = dbc.queryList(ACTIONY_EVENTS_QUERY, data, ActionyEvent::new);
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE,
 					"Getting actiony events failed for player " + playerReplayIdDb, e);
@@ -116,11 +162,17 @@ public class PlayerReplay {
 	 * recorded in the actions list for the player.
 	 */
 	public List<Action> getStrategicActionsAndEvents() {
+		return strategicActionsAndEvents(getActions(), getActionyEvents());
+	}
+	
+	/** See {@link #getStrategicActionsAndEvents()}. Shared with {@link PlayerReplaySnapshot}. */
+	static List<Action> strategicActionsAndEvents(List<Action> allActions,
+			List<ActionyEvent> actionyEvents) {
 		// from player actions, use only research / upgrade actions
 		// (and only once per research/upgrade)
 		Set<Integer> seenResearch = new HashSet<>();
 		Set<Integer> seenUpgrade = new HashSet<>();
-		List<Action> actions = getActions().stream()
+		List<Action> actions = allActions.stream()
 				.filter(a ->
 						(a.unitCommandType == UnitCommandTypes.Research
 								&& seenResearch.add(a.targetId))
@@ -128,7 +180,7 @@ public class PlayerReplay {
 								&& seenUpgrade.add(a.targetId)))
 				.collect(Collectors.toList());
 		// merge based on frame
-		actions.addAll(getActionyEvents());
+		actions.addAll(actionyEvents);
 		Collections.sort(actions, (a1, a2) -> a1.frame - a2.frame);
 		
 		return actions;
@@ -136,6 +188,10 @@ public class PlayerReplay {
 	
 	/** Gets the latest record of the player's resources up to and including the given frame */
 	public Resources getResources(int frame) throws SQLException {
+		PlayerReplayView view = getCachedView();
+		if (view != null) {
+			return view.getResources(frame);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<Object> data = new ArrayList<>();
 		data.add(playerReplayIdDb);
@@ -157,13 +213,15 @@ public class PlayerReplay {
 	 * {@link Unit#getAttribute(int, util.UnitAttributes.UnitAttribute)}
 	 */
 	public List<Unit> getUnits() {
+		PlayerReplayView view = getCachedView();
+		if (view != null) {
+			return view.getUnits();
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<Unit> units = new ArrayList<>();
-		try (ResultSet rs = dbc.executeQuery(
-				"SELECT * FROM unit WHERE playerReplayId=?", playerReplayIdDb) ) {
-			while (rs.next()) {
-				units.add(new Unit(rs));
-			}
+		try {
+			units = dbc.queryList("SELECT * FROM unit WHERE playerReplayId=?", playerReplayIdDb,
+					Unit::new);
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE, "Error retrieving units for player " + playerReplayIdDb, e);
 		}
@@ -175,6 +233,10 @@ public class PlayerReplay {
 	 * all units and filtering to see if they exist.
 	 */
 	public List<Unit> getUnitsExisting(int frame) {
+		PlayerReplayView view = getCachedView();
+		if (view != null) {
+			return view.getUnitsExisting(frame);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<Object> data = new ArrayList<>();
 		data.add(UnitAttribute.Exists.getId());
@@ -182,16 +244,14 @@ public class PlayerReplay {
 		data.add(playerReplayIdDb);
 		
 		List<Unit> units = new ArrayList<>();
-		try (ResultSet rs = dbc.executeQuery(
-				"SELECT * FROM attributeChange NATURAL JOIN unit NATURAL JOIN"
-				+ " (SELECT unitId, attributeTypeId, max(changeTime) AS changeTime"
-				+ "  FROM attributeChange NATURAL JOIN unit"
-				+ "  WHERE attributeTypeId=? AND changeTime<=? AND playerReplayId=?"
-				+ "  GROUP BY unitId) AS q "
-				+ "WHERE changeVal=1", data) ) {
-			while (rs.next()) {
-				units.add(new Unit(rs));
-			}
+		try {
+			units = dbc.queryList(
+					"SELECT * FROM attributeChange NATURAL JOIN unit NATURAL JOIN"
+					+ " (SELECT unitId, attributeTypeId, max(changeTime) AS changeTime"
+					+ "  FROM attributeChange NATURAL JOIN unit"
+					+ "  WHERE attributeTypeId=? AND changeTime<=? AND playerReplayId=?"
+					+ "  GROUP BY unitId) AS q "
+					+ "WHERE changeVal=1", data, Unit::new);
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE, "Error retrieving existing units for player "
 					+ playerReplayIdDb + " in frame " + frame, e);
@@ -199,6 +259,25 @@ public class PlayerReplay {
 		return units;
 	}
 	
+	/**
+	 * Count this player's units of each type that exist in a particular frame. From the local
+	 * cache this reads the units' types and attributes in place, without building the units.
+	 */
+	public Map<UnitType, Integer> getUnitTypeCountsExisting(int frame) {
+		PlayerReplayView view = getCachedView();
+		if (view == null) {
+			return getUnitsExisting(frame).stream()
+					.collect(Collectors.groupingBy(Unit::getType, Util.countingInt()));
+		}
+		Map<UnitType, Integer> counts = new HashMap<>();
+		for (int i = 0; i < view.numUnits(); i++) {
+			if (view.isExisting(i, frame)) {
+				counts.merge(UnitTypes.getUnitType(view.getUnitTypeId(i)), 1, Integer::sum);
+			}
+		}
+		return counts;
+	}
+	
 	public boolean canSee(Unit u, int frame) {
 		return u.visibleTo(this, frame);
 	}
@@ -217,6 +296,14 @@ public class PlayerReplay {
 	
 	/** Get replay for this PlayerReplay */
 	public Replay getReplay() throws SQLException {
+		return DbInterface.getInstance().getReplayEntityCache().get(replayIdDb, this::loadReplay);
+	}
+	
+	private Replay loadReplay(int replayIdDb) throws SQLException {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			return cache.getReplay(replayIdDb);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		
 		ResultSet rs = dbc.executeQuery("SELECT * FROM replay WHERE replayId=?", replayIdDb);
@@ -227,6 +314,40 @@ public class PlayerReplay {
 		}
 	}
 	
+	/**
+	 * A snapshot of this player from the local replay cache, or null if the DB is in use (or the
+	 * player isn't in the cache, which is logged).
+	 */
+	PlayerReplaySnapshot getCachedSnapshot() {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache == null) {
+			return null;
+		}
+		try {
+			return cache.getSnapshot(this);
+		} catch (SQLException e) {
+			LOGGER.log(Level.SEVERE, "Error reading player " + playerReplayIdDb + " from cache", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * A view of this player in the local replay cache, or null if the DB is in use (or the player
+	 * isn't in the cache, which is logged).
+	 */
+	PlayerReplayView getCachedView() {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache == null) {
+			return null;
+		}
+		try {
+			return cache.getView(this);
+		} catch (SQLException e) {
+			LOGGER.log(Level.SEVERE, "Error reading player " + playerReplayIdDb + " from cache", e);
+			return null;
+		}
+	}
+	
 	@Override
 	public int hashCode() {
 		return playerReplayIdDb;
@@ -0,0 +1,229 @@
+package scdb;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import util.DbConnection;
+import util.UnitAttributes;
+import util.UnitAttributes.UnitAttribute;
+
+/**
+ * Everything recorded in the DB about one PlayerReplay: actions, actiony events, units, unit
+ * attribute changes, what the player could see and their resources. It is all read in a handful
+ * of bulk queries when the snapshot is loaded, after which the same questions that
+ * {@link PlayerReplay} and {@link Unit} answer with a query each can be answered from memory. The
+ * snapshot's units carry their own {@link UnitTimeline} so they can be used directly as well.<br>
+ * Visibility is from the point of view of this player, so {@link #hasSeen(Unit, int)} is for
+ * (opponent) units that this player may have seen. Unit attributes are only available for this
+ * player's own units - load a snapshot of the opponent to check theirs.
+ */
+public class PlayerReplaySnapshot {
+	private static final Logger LOGGER = Logger.getLogger(PlayerReplaySnapshot.class.getName());
+
+	public final PlayerReplay player;
+	private final List<Action> actions = new ArrayList<>();
+	private final List<ActionyEvent> actionyEvents = new ArrayList<>();
+	private final List<Unit> units = new ArrayList<>();
+	/** unitId -> attribute changes for that unit */
+	private final Map<Long, UnitTimeline> timelines = new HashMap<>();
+	/** unitId -> changeTime -> visible, for units viewed by this player */
+	private final Map<Long, TreeMap<Integer, Boolean>> visibilityChanges = new HashMap<>();
+	/** unitId -> first frame in which the unit was visible to this player */
+	private final Map<Long, Integer> firstSeen = new HashMap<>();
+	/** frame -> resources */
+	private final TreeMap<Integer, Resources> resources = new TreeMap<>();
+
+	/** Create an empty snapshot, to be filled in by a loader */
+	PlayerReplaySnapshot(PlayerReplay player) {
+		this.player = player;
+	}
+
+	/**
+	 * Load all the data for the given player, from the local replay cache if one is in use or
+	 * otherwise from the DB.
+	 */
+	public static PlayerReplaySnapshot load(PlayerReplay p) throws SQLException {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			return cache.loadSnapshot(p);
+		}
+		return loadFromDb(p);
+	}
+
+	/** Load all the data for the given player from the DB */
+	static PlayerReplaySnapshot loadFromDb(PlayerReplay p) throws SQLException {
+		PlayerReplaySnapshot s = new PlayerReplaySnapshot(p);
+		DbConnection dbc = DbInterface.getInstance().getDbc();
+		int id = p.playerReplayIdDb;
+
+		dbc.streamQuery("SELECT * FROM action WHERE playerReplayId=? ORDER BY frame, actionid",
+				id, rs -> s.addAction(new Action(rs)));
+		dbc.streamQuery(PlayerReplay.ACTIONY_EVENTS_QUERY, id,
+				rs -> s.addActionyEvent(new ActionyEvent(rs)));
+		dbc.streamQuery("SELECT * FROM unit WHERE playerReplayId=? ORDER BY unitId", id,
+				rs -> s.addUnit(new Unit(rs)));
+		Map<Long, UnitTimeline.Builder> builders = new HashMap<>();
+		dbc.streamQuery("SELECT unitId, attributeTypeId, changeTime, changeVal"
+				+ " FROM attributeChange NATURAL JOIN unit WHERE playerReplayId=?"
+				+ " ORDER BY unitId, attributeTypeId, changeTime", id,
+				rs -> builders.computeIfAbsent(rs.getLong(1), k -> new UnitTimeline.Builder())
+						.add(rs.getInt(2), rs.getInt(3), rs.getInt(4)));
+		s.setTimelines(builders);
+		dbc.streamQuery("SELECT unitId, changeTime, changeVal FROM visibilitychange"
+				+ " WHERE viewerId=?", id,
+				rs -> s.addVisibilityChange(rs.getLong(1), rs.getInt(2), rs.getBoolean(3)));
+		dbc.streamQuery("SELECT * FROM resourceChange WHERE playerReplayId=?", id,
+				rs -> s.addResources(new Resources(rs)));
+		LOGGER.fine("Loaded snapshot of player " + id + ": " + s.actions.size() + " actions, "
+				+ s.units.size() + " units, " + builders.size() + " units with attributes");
+		return s;
+	}
+	
+	// Used by loaders to fill in the snapshot
+	
+	void addAction(Action a) {
+		actions.add(a);
+	}
+	
+	void addActionyEvent(ActionyEvent e) {
+		actionyEvents.add(e);
+	}
+	
+	void addUnit(Unit u) {
+		units.add(u);
+	}
+	
+	/** Build and attach a timeline (possibly empty) to each unit already added */
+	void setTimelines(Map<Long, UnitTimeline.Builder> builders) {
+		UnitTimeline empty = new UnitTimeline.Builder().build();
+		for (Unit u : units) {
+			UnitTimeline.Builder b = builders.get(u.unitIdDb);
+			UnitTimeline t = b == null ? empty : b.build();
+			u.setTimeline(t);
+			timelines.put(u.unitIdDb, t);
+		}
+	}
+	
+	void addVisibilityChange(long unitId, int changeTime, boolean visible) {
+		visibilityChanges.computeIfAbsent(unitId, k -> new TreeMap<>()).put(changeTime, visible);
+		if (visible) {
+			firstSeen.merge(unitId, changeTime, Math::min);
+		}
+	}
+	
+	void addResources(Resources r) {
+		resources.put(r.frame, r);
+	}
+	
+	/** unitId -> changeTime -> visible, for units viewed by this player */
+	Map<Long, TreeMap<Integer, Boolean>> getVisibilityChanges() {
+		return Collections.unmodifiableMap(visibilityChanges);
+	}
+
+	/** Get all actions by this player, in frame order */
+	public List<Action> getActions() {
+		return Collections.unmodifiableList(actions);
+	}
+
+	/**
+	 * Get all actions by this player, in frame order, between frameStart and frameEnd (inclusive)
+	 */
+	public List<Action> getActions(int frameStart, int frameEnd) {
+		return actions.stream()
+				.filter(a -> a.frame >= frameStart && a.frame <= frameEnd)
+				.collect(Collectors.toList());
+	}
+
+	/** See {@link PlayerReplay#getActionyEvents()} */
+	public List<ActionyEvent> getActionyEvents() {
+		return Collections.unmodifiableList(actionyEvents);
+	}
+
+	/** See {@link PlayerReplay#getStrategicActionsAndEvents()} */
+	public List<Action> getStrategicActionsAndEvents() {
+		return PlayerReplay.strategicActionsAndEvents(actions, actionyEvents);
+	}
+
+	/** Gets the latest record of the player's resources up to and including the given frame */
+	public Resources getResources(int frame) throws SQLException {
+		Entry<Integer, Resources> e = resources.floorEntry(frame);
+		if (e == null) {
+			throw new SQLException(String.format("No resources found for player %d in frame %d",
+					player.playerReplayIdDb, frame));
+		}
+		return e.getValue();
+	}
+
+	/** Get all the units belonging to this player this game. */
+	public List<Unit> getUnits() {
+		return Collections.unmodifiableList(units);
+	}
+
+	/** Get all units belonging to this player that exist in a particular frame. */
+	public List<Unit> getUnitsExisting(int frame) {
+		return units.stream()
+				.filter(u -> isExisting(u, frame))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Get the latest value for an attribute of one of this player's units up to and including the
+	 * given frame. If no attribute changes were found, returns 0.
+	 */
+	public int getAttribute(Unit u, int frame, UnitAttribute attribute) {
+		UnitTimeline t = timelines.get(u.unitIdDb);
+		return t == null ? 0 : t.getAttribute(frame, attribute);
+	}
+
+	/** Whether one of this player's units exists in a certain frame, for convenience. */
+	public boolean isExisting(Unit u, int frame) {
+		return getAttribute(u, frame, UnitAttribute.Exists) == 1;
+	}
+
+	/** Get all attributes of one of this player's units up to a particular frame. */
+	public UnitAttributes getAttributes(Unit u, int frame) {
+		UnitTimeline t = timelines.get(u.unitIdDb);
+		return t == null ? new UnitAttributes() : t.getAttributes(frame);
+	}
+	
+	/** The attribute timeline of one of this player's units, or null if it isn't one. */
+	public UnitTimeline getTimeline(Unit u) {
+		return timelines.get(u.unitIdDb);
+	}
+
+	/** Whether the unit was visible to this player in the given frame. */
+	public boolean canSee(Unit u, int frame) {
+		TreeMap<Integer, Boolean> changes = visibilityChanges.get(u.unitIdDb);
+		if (changes == null) {
+			return false;
+		}
+		Entry<Integer, Boolean> e = changes.floorEntry(frame);
+		return e != null && e.getValue();
+	}
+
+	/** Whether the unit was *ever* visible to this player, before or in the given frame. */
+	public boolean hasSeen(Unit u, int frame) {
+		Integer seen = firstSeen.get(u.unitIdDb);
+		return seen != null && seen <= frame;
+	}
+	
+	/** The first frame the unit was visible to this player, or -1 if it never was. */
+	public int getFirstSeen(Unit u) {
+		return firstSeen.getOrDefault(u.unitIdDb, -1);
+	}
+	
+	/** All recorded resources for this player, in frame order. */
+	public Collection<Resources> getResourceChanges() {
+		return Collections.unmodifiableCollection(resources.values());
+	}
+
+}
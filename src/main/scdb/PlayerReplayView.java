@@ -0,0 +1,175 @@
+package scdb;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import scdb.ReplayCache.Section;
+import util.UnitAttributes.UnitAttribute;
+
+/**
+ * Random access to one player's data in a memory-mapped {@link ReplayCache} file. Nothing is
+ * decoded up front: each lookup is a binary search directly on the mapped (sorted) sections, so
+ * looking up a single frame costs no more than a few page reads. The accessors taking a unit index
+ * or returning a primitive read straight from the sections and allocate nothing; those returning
+ * {@link Unit}s or {@link Resources} build them from the same reads. Units returned by a view
+ * answer their attribute queries from the view in the same way.
+ * Views are immutable and can be shared between threads.
+ */
+public class PlayerReplayView {
+	public final PlayerReplay player;
+	/** unitId, unitTypeId. Sorted by unitId */
+	private final Section units;
+	/** unit index, attributeTypeId, changeTime, changeVal. Sorted. */
+	private final Section attributes;
+	/** unitId, changeTime, visible. Sorted by unitId, changeTime */
+	private final Section visibility;
+	/** unitId, first frame visible. Sorted by unitId */
+	private final Section firstSeen;
+	/** frame, minerals, ... Sorted by frame */
+	private final Section resources;
+
+	PlayerReplayView(PlayerReplay player, Section units, Section attributes, Section visibility,
+			Section firstSeen, Section resources) {
+		this.player = player;
+		this.units = units;
+		this.attributes = attributes;
+		this.visibility = visibility;
+		this.firstSeen = firstSeen;
+		this.resources = resources;
+	}
+
+	public int numUnits() {
+		return units.rows;
+	}
+
+	/** Index of the unit in this view, or -1 if it isn't one of this player's units */
+	public int unitIndex(long unitId) {
+		int i = units.lowerBound(0, unitId);
+		return i < units.rows && units.getLong(0, i) == unitId ? i : -1;
+	}
+
+	public long getUnitId(int unitIdx) {
+		return units.getLong(0, unitIdx);
+	}
+
+	public int getUnitTypeId(int unitIdx) {
+		return units.getInt(1, unitIdx);
+	}
+
+	/** The unit with the given index, which will use this view to look up its attributes */
+	public Unit getUnit(int unitIdx) {
+		Unit u = new Unit(getUnitId(unitIdx), getUnitTypeId(unitIdx));
+		u.setView(this, unitIdx);
+		return u;
+	}
+
+	/** See {@link PlayerReplay#getUnits()} */
+	public List<Unit> getUnits() {
+		List<Unit> result = new ArrayList<>(units.rows);
+		for (int i = 0; i < units.rows; i++) {
+			result.add(getUnit(i));
+		}
+		return result;
+	}
+
+	/** See {@link PlayerReplay#getUnitsExisting(int)} */
+	public List<Unit> getUnitsExisting(int frame) {
+		List<Unit> result = new ArrayList<>();
+		for (int i = 0; i < units.rows; i++) {
+			if (isExisting(i, frame)) {
+				result.add(getUnit(i));
+			}
+		}
+		return result;
+	}
+
+	/** See {@link PlayerReplay#getResources(int)} */
+	public Resources getResources(int frame) throws SQLException {
+		int i = resourceRow(frame);
+		return new Resources(resources.getInt(0, i), resources.getInt(1, i),
+				resources.getInt(2, i), resources.getInt(3, i), resources.getInt(4, i),
+				resources.getInt(5, i), resources.getInt(6, i));
+	}
+
+	/** The player's minerals in the latest record up to and including the given frame */
+	public int getMinerals(int frame) throws SQLException {
+		return resources.getInt(1, resourceRow(frame));
+	}
+
+	/** The player's gas in the latest record up to and including the given frame */
+	public int getGas(int frame) throws SQLException {
+		return resources.getInt(2, resourceRow(frame));
+	}
+
+	/** The player's supply in the latest record up to and including the given frame */
+	public int getSupply(int frame) throws SQLException {
+		return resources.getInt(3, resourceRow(frame));
+	}
+
+	/** Last resources record with frame &lt;= the given frame */
+	private int resourceRow(int frame) throws SQLException {
+		int i = resources.lowerBound(0, (long) frame + 1) - 1;
+		if (i < 0) {
+			throw new SQLException(String.format("No resources found for player %d in frame %d",
+					player.playerReplayIdDb, frame));
+		}
+		return i;
+	}
+
+	/** See {@link Unit#getAttribute(int, UnitAttribute)}, for the unit with the given index */
+	public int getAttribute(int unitIdx, int frame, UnitAttribute attribute) {
+		int attr = attribute.getId();
+		// Last row <= (unitIdx, attr, frame)
+		int lo = 0;
+		int hi = attributes.rows;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = Integer.compare(attributes.getInt(0, mid), unitIdx);
+			if (cmp == 0) {
+				cmp = Integer.compare(attributes.getInt(1, mid), attr);
+			}
+			if (cmp == 0) {
+				cmp = Integer.compare(attributes.getInt(2, mid), frame);
+			}
+			if (cmp <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		int i = lo - 1;
+		if (i < 0 || attributes.getInt(0, i) != unitIdx || attributes.getInt(1, i) != attr) {
+			return 0;
+		}
+		return attributes.getInt(3, i);
+	}
+
+	public boolean isExisting(int unitIdx, int frame) {
+		return getAttribute(unitIdx, frame, UnitAttribute.Exists) == 1;
+	}
+
+	/** Whether the unit was visible to this player in the given frame. */
+	public boolean canSee(long unitId, int frame) {
+		// Last row <= (unitId, frame)
+		int lo = visibility.lowerBound(0, unitId);
+		int hi = visibility.lowerBound(0, unitId + 1);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (visibility.getInt(1, mid) <= frame) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		int i = lo - 1;
+		return i >= 0 && visibility.getLong(0, i) == unitId && visibility.getByte(2, i) != 0;
+	}
+
+	/** Whether the unit was *ever* visible to this player, before or in the given frame. */
+	public boolean hasSeen(long unitId, int frame) {
+		int i = firstSeen.lowerBound(0, unitId);
+		return i < firstSeen.rows && firstSeen.getLong(0, i) == unitId
+				&& firstSeen.getInt(1, i) <= frame;
+	}
+}
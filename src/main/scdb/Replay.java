@@ -34,6 +34,10 @@ public class Replay {
 	
 	/** Get list of all replays from DB */
 	public static List<Replay> getReplays() {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			return cache.getReplays();
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<Replay> replays = new ArrayList<>();
 		try (ResultSet rs = dbc.executeQuery("SELECT * FROM replay", null); ) {
@@ -48,6 +52,15 @@ public class Replay {
 	
 	/** Get players for this replay */
 	public List<PlayerReplay> getPlayers() {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			try {
+				return internAll(new ArrayList<>(cache.getPlayers(dbReplayId)));
+			} catch (SQLException e) {
+				LOGGER.log(Level.SEVERE, "Failed to load players in replay " + dbReplayId, e);
+				return new ArrayList<>();
+			}
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<PlayerReplay> players = new ArrayList<>();
 		try {
@@ -64,11 +77,27 @@ public class Replay {
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE, "Failed to load players in replay " + dbReplayId, e);
 		}
+		return internAll(players);
+	}
+	
+	/** Replace players with the cached instances, if any, so lookups by ID share them */
+	private static List<PlayerReplay> internAll(List<PlayerReplay> players) {
+		EntityCache<Long, PlayerReplay> entities =
+				DbInterface.getInstance().getPlayerReplayEntityCache();
+		players.replaceAll(p -> entities.intern((long) p.playerReplayIdDb, p));
 		return players;
 	}
 	
 	/** Get the map for this replay */
 	public ScMap getMap() throws SQLException {
+		return DbInterface.getInstance().getMapEntityCache().get(dbMapId, this::loadMap);
+	}
+	
+	private ScMap loadMap(int dbMapId) throws SQLException {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			return cache.getMap(dbMapId);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		// Get the map name and number of start positions
 		ResultSet rs = dbc.executeQuery("SELECT * FROM map WHERE mapId=?", dbMapId);
@@ -91,6 +120,15 @@ public class Replay {
 	
 	/** Get all events in this replay, in frame order */
 	public List<Event> getEvents() {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			try {
+				return cache.getEvents(dbReplayId);
+			} catch (SQLException e) {
+				LOGGER.log(Level.SEVERE, "Failed to load events in replay " + dbReplayId, e);
+				return new ArrayList<>();
+			}
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<Event> events = new ArrayList<>();
 		try (ResultSet rs = dbc.executeQuery(
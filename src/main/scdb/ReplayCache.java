@@ -0,0 +1,644 @@
+package scdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A read-only local copy of the replay database, written by {@link ReplayCacheExporter}, so that
+ * experiments can be run without a database server. {@link DbInterface} uses it instead of the
+ * database when <code>local_cache_dir</code> is set.<br>
+ * There is one file per replay (holding its players, events and all the per-player data) and one
+ * file per map (holding its build tiles). Each file has a header giving the offset of each
+ * section, followed by the sections. A section is a row count followed by each of its columns
+ * stored contiguously (all of column 0, then all of column 1, ...), so reading one column doesn't
+ * touch the others. Files are memory-mapped and only decoded when asked for: either all at once
+ * for a player with {@link #loadSnapshot(PlayerReplay)}, or a frame at a time with
+ * {@link #getView(PlayerReplay)}.
+ */
+public class ReplayCache {
+	private static final Logger LOGGER = Logger.getLogger(ReplayCache.class.getName());
+
+	static final int MAGIC = 0x53435243; // "SCRC"
+	static final int VERSION = 2;
+	public static final String REPLAY_EXT = ".screp";
+	public static final String MAP_EXT = ".scmap";
+	static final String MAP_PREFIX = "map";
+
+	// Byte width of each column of each type of section, in column order
+	/** actionId, frame, unitCommandTypeId, orderTypeId, unitGroupId, targetId, x, y, delayed */
+	static final int[] ACTION_COLS = {8, 4, 4, 4, 8, 4, 4, 4, 1};
+	/** eventId, frame, (morphed) unitTypeId, unitId */
+	static final int[] ACTIONY_EVENT_COLS = {8, 4, 4, 8};
+	/** unitId, unitTypeId. Sorted by unitId */
+	static final int[] UNIT_COLS = {8, 4};
+	/** unit index (in the units section), attributeTypeId, changeTime, changeVal. Sorted. */
+	static final int[] ATTRIBUTE_COLS = {4, 4, 4, 4};
+	/** unitId, changeTime, visible. Sorted by unitId, changeTime. Viewer is the player. */
+	static final int[] VISIBILITY_COLS = {8, 4, 1};
+	/** frame, minerals, gas, supply, totalMinerals, totalGas, totalSupply. Sorted by frame */
+	static final int[] RESOURCE_COLS = {4, 4, 4, 4, 4, 4, 4};
+	/** unitId, first frame the unit was visible to the player. Sorted by unitId */
+	static final int[] FIRST_SEEN_COLS = {8, 4};
+	/** unitGroupId, unitId. Sorted by unitGroupId */
+	static final int[] UNIT_GROUP_COLS = {8, 8};
+	/** eventId, frame, eventTypeId, unitId (or -1), buildTileId (or -1). In frame order. */
+	static final int[] EVENT_COLS = {4, 4, 4, 8, 8};
+	/**
+	 * x, y, buildTileId, groundHeightId, buildable, walkable, chokeDist, baseLocationDist,
+	 * startLocationDist, regionId. Sorted by x, y.
+	 */
+	static final int[] TILE_COLS = {4, 4, 8, 1, 1, 4, 4, 4, 4, 4};
+
+	// Order of the sections stored for each player
+	static final int SEC_ACTIONS = 0;
+	static final int SEC_ACTIONY_EVENTS = 1;
+	static final int SEC_UNITS = 2;
+	static final int SEC_ATTRIBUTES = 3;
+	static final int SEC_VISIBILITY = 4;
+	static final int SEC_RESOURCES = 5;
+	static final int SEC_UNIT_GROUPS = 6;
+	static final int SEC_FIRST_SEEN = 7;
+	static final int[][] PLAYER_SECTION_COLS = {ACTION_COLS, ACTIONY_EVENT_COLS, UNIT_COLS,
+			ATTRIBUTE_COLS, VISIBILITY_COLS, RESOURCE_COLS, UNIT_GROUP_COLS, FIRST_SEEN_COLS};
+
+	/** Number of decoded snapshots to keep for answering one-off queries */
+	private static final int MAX_RECENT_SNAPSHOTS = 16;
+
+	/** In replayId order */
+	private final List<ReplayFile> replayFiles = new ArrayList<>();
+	private final Map<Integer, ReplayFile> replayById = new HashMap<>();
+	private final Map<Integer, ReplayFile> replayByPlayerId = new HashMap<>();
+	/** All map files, opened with the cache */
+	private final Map<Integer, MapFile> mapFiles = new HashMap<>();
+	/** Each player's range of unit IDs, sorted by first ID */
+	private UnitRange[] unitRanges;
+	/** Guarded by itself */
+	private final Map<Integer, PlayerReplaySnapshot> recentSnapshots =
+			new LinkedHashMap<Integer, PlayerReplaySnapshot>(MAX_RECENT_SNAPSHOTS, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, PlayerReplaySnapshot> e) {
+					return size() > MAX_RECENT_SNAPSHOTS;
+				}
+			};
+
+	private ReplayCache() {
+	}
+
+	/** Open all the replay files in the given directory. */
+	public static ReplayCache open(File dir) throws IOException {
+		if (!dir.isDirectory()) {
+			throw new IOException("Replay cache directory not found: " + dir.getAbsolutePath());
+		}
+		ReplayCache cache = new ReplayCache();
+		File[] files = dir.listFiles(f -> f.getName().endsWith(REPLAY_EXT));
+		for (File f : files) {
+			ReplayFile rf = new ReplayFile(map(f));
+			cache.replayFiles.add(rf);
+			cache.replayById.put(rf.replay.dbReplayId, rf);
+			for (PlayerReplay p : rf.players) {
+				cache.replayByPlayerId.put(p.playerReplayIdDb, rf);
+			}
+		}
+		Collections.sort(cache.replayFiles,
+				(r1, r2) -> Integer.compare(r1.replay.dbReplayId, r2.replay.dbReplayId));
+		cache.indexUnits();
+		for (File f : dir.listFiles(f -> f.getName().endsWith(MAP_EXT))) {
+			MapFile mf = new MapFile(map(f));
+			cache.mapFiles.put(mf.map.dbMapId, mf);
+		}
+		LOGGER.info("Opened replay cache with " + cache.replayFiles.size() + " replays and "
+				+ cache.mapFiles.size() + " maps in " + dir.getAbsolutePath());
+		return cache;
+	}
+
+	/** Record the range of unit IDs of each player, to find units by ID without scanning */
+	private void indexUnits() {
+		List<UnitRange> ranges = new ArrayList<>();
+		for (ReplayFile rf : replayFiles) {
+			for (int idx = 0; idx < rf.players.size(); idx++) {
+				Section units = rf.section(idx, SEC_UNITS);
+				if (units.rows > 0) {
+					ranges.add(new UnitRange(units.getLong(0, 0), units.getLong(0, units.rows - 1),
+							rf, idx));
+				}
+			}
+		}
+		unitRanges = ranges.toArray(new UnitRange[ranges.size()]);
+		Arrays.sort(unitRanges, (r1, r2) -> Long.compare(r1.first, r2.first));
+		long maxLast = Long.MIN_VALUE;
+		for (UnitRange r : unitRanges) {
+			maxLast = Math.max(maxLast, r.last);
+			r.maxLast = maxLast;
+		}
+	}
+
+	/** Memory-map the whole file, read only */
+	static ByteBuffer map(File f) throws IOException {
+		try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+	}
+
+	static File replayFile(File dir, int replayId) {
+		return new File(dir, replayId + REPLAY_EXT);
+	}
+
+	static File mapFile(File dir, int mapId) {
+		return new File(dir, MAP_PREFIX + mapId + MAP_EXT);
+	}
+
+	public boolean hasReplay(int replayId) {
+		return replayById.containsKey(replayId);
+	}
+
+	/** All replays, in ID order */
+	public List<Replay> getReplays() {
+		List<Replay> replays = new ArrayList<>(replayFiles.size());
+		for (ReplayFile rf : replayFiles) {
+			replays.add(rf.replay);
+		}
+		return replays;
+	}
+
+	public Replay getReplay(int replayId) throws SQLException {
+		return getReplayFile(replayId).replay;
+	}
+
+	public List<PlayerReplay> getPlayers(int replayId) throws SQLException {
+		return Collections.unmodifiableList(getReplayFile(replayId).players);
+	}
+
+	public PlayerReplay getPlayerReplay(long playerReplayId) throws SQLException {
+		ReplayFile rf = replayByPlayerId.get((int) playerReplayId);
+		if (rf == null) {
+			throw new SQLException("No playerreplay found for ID " + playerReplayId);
+		}
+		return rf.players.get(rf.playerIndex((int) playerReplayId));
+	}
+
+	/** All events in the replay, in frame order */
+	public List<Event> getEvents(int replayId) throws SQLException {
+		ReplayFile rf = getReplayFile(replayId);
+		Section s = new Section(rf.buf, rf.eventsOffset, EVENT_COLS);
+		List<Event> events = new ArrayList<>(s.rows);
+		for (int i = 0; i < s.rows; i++) {
+			events.add(new Event(s.getInt(0, i), s.getInt(1, i), s.getInt(2, i), s.getLong(3, i),
+					s.getLong(4, i)));
+		}
+		return events;
+	}
+
+	public ScMap getMap(int mapId) throws SQLException {
+		return getMapFile(mapId).map;
+	}
+
+	/** See {@link ScMap#getBuildTiles()} */
+	public BuildTile[][] getBuildTiles(ScMap map) throws SQLException {
+		Section s = getMapFile(map.dbMapId).tiles;
+		BuildTile[][] tiles = new BuildTile[map.xSize][map.ySize];
+		for (int i = 0; i < s.rows; i++) {
+			tiles[s.getInt(0, i)][s.getInt(1, i)] = buildTile(s, i);
+		}
+		return tiles;
+	}
+
+	public BuildTile getBuildTile(int mapId, int bTilePosX, int bTilePosY) throws SQLException {
+		Section s = getMapFile(mapId).tiles;
+		// binary search on (x, y)
+		int lo = 0;
+		int hi = s.rows - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = Integer.compare(s.getInt(0, mid), bTilePosX);
+			if (cmp == 0) {
+				cmp = Integer.compare(s.getInt(1, mid), bTilePosY);
+			}
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return buildTile(s, mid);
+			}
+		}
+		throw new SQLException("No such build tile found: " + bTilePosX + "," + bTilePosY);
+	}
+
+	/** Search each map's index of build tile IDs for a build tile. */
+	public BuildTile getBuildTileById(long buildTileId) throws SQLException {
+		for (MapFile mf : mapFiles.values()) {
+			int i = Arrays.binarySearch(mf.tileIds, buildTileId);
+			if (i >= 0) {
+				return buildTile(mf.tiles, mf.tileRows[i]);
+			}
+		}
+		throw new SQLException("No buildTile found with id " + buildTileId);
+	}
+
+	private static BuildTile buildTile(Section s, int i) {
+		return new BuildTile(s.getLong(2, i), s.getByte(3, i), s.getByte(4, i) != 0,
+				s.getInt(5, i), s.getInt(6, i), s.getInt(7, i), s.getInt(8, i), s.getInt(9, i));
+	}
+
+	/** Decode all the data for the player into a new snapshot. */
+	public PlayerReplaySnapshot loadSnapshot(PlayerReplay p) throws SQLException {
+		ReplayFile rf = replayByPlayerId.get(p.playerReplayIdDb);
+		if (rf == null) {
+			throw new SQLException("No playerreplay found for ID " + p.playerReplayIdDb);
+		}
+		int idx = rf.playerIndex(p.playerReplayIdDb);
+		PlayerReplaySnapshot snapshot = new PlayerReplaySnapshot(p);
+
+		Section s = rf.section(idx, SEC_ACTIONS);
+		for (int i = 0; i < s.rows; i++) {
+			snapshot.addAction(new Action(s.getLong(0, i), p.playerReplayIdDb, s.getInt(1, i),
+					s.getInt(2, i), s.getInt(3, i), s.getLong(4, i), s.getInt(5, i),
+					s.getInt(6, i), s.getInt(7, i), s.getByte(8, i) != 0));
+		}
+		s = rf.section(idx, SEC_ACTIONY_EVENTS);
+		for (int i = 0; i < s.rows; i++) {
+			snapshot.addActionyEvent(new ActionyEvent(s.getLong(0, i), p.playerReplayIdDb,
+					s.getInt(1, i), s.getInt(2, i), s.getLong(3, i)));
+		}
+		Section units = rf.section(idx, SEC_UNITS);
+		for (int i = 0; i < units.rows; i++) {
+			snapshot.addUnit(new Unit(units.getLong(0, i), units.getInt(1, i)));
+		}
+		s = rf.section(idx, SEC_ATTRIBUTES);
+		Map<Long, UnitTimeline.Builder> builders = new HashMap<>();
+		for (int i = 0; i < s.rows; i++) {
+			long unitId = units.getLong(0, s.getInt(0, i));
+			builders.computeIfAbsent(unitId, k -> new UnitTimeline.Builder())
+					.add(s.getInt(1, i), s.getInt(2, i), s.getInt(3, i));
+		}
+		snapshot.setTimelines(builders);
+		s = rf.section(idx, SEC_VISIBILITY);
+		for (int i = 0; i < s.rows; i++) {
+			snapshot.addVisibilityChange(s.getLong(0, i), s.getInt(1, i), s.getByte(2, i) != 0);
+		}
+		s = rf.section(idx, SEC_RESOURCES);
+		for (int i = 0; i < s.rows; i++) {
+			snapshot.addResources(new Resources(s.getInt(0, i), s.getInt(1, i), s.getInt(2, i),
+					s.getInt(3, i), s.getInt(4, i), s.getInt(5, i), s.getInt(6, i)));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Get a view for random access to the player's data, without decoding it. Views are created
+	 * once per player and shared.
+	 */
+	public PlayerReplayView getView(PlayerReplay p) throws SQLException {
+		ReplayFile rf = replayByPlayerId.get(p.playerReplayIdDb);
+		if (rf == null) {
+			throw new SQLException("No playerreplay found for ID " + p.playerReplayIdDb);
+		}
+		return rf.view(rf.playerIndex(p.playerReplayIdDb));
+	}
+
+	/**
+	 * Get a snapshot of the player to answer one-off queries (eg. {@link PlayerReplay#getUnits()}).
+	 * Recently used snapshots are kept and shared, so they must not be modified.
+	 */
+	public PlayerReplaySnapshot getSnapshot(PlayerReplay p) throws SQLException {
+		synchronized (recentSnapshots) {
+			PlayerReplaySnapshot s = recentSnapshots.get(p.playerReplayIdDb);
+			if (s != null) {
+				return s;
+			}
+		}
+		PlayerReplaySnapshot s = loadSnapshot(p);
+		synchronized (recentSnapshots) {
+			recentSnapshots.put(p.playerReplayIdDb, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Find a unit by ID, or null if there is none. The unit answers attribute queries from its
+	 * player's view.
+	 */
+	public Unit getUnit(long unitId) throws SQLException {
+		// Last range starting at or before the ID, then back while earlier ones may still hold it
+		int lo = 0;
+		int hi = unitRanges.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (unitRanges[mid].first <= unitId) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		for (int r = lo - 1; r >= 0 && unitRanges[r].maxLast >= unitId; r--) {
+			UnitRange range = unitRanges[r];
+			if (range.last >= unitId) {
+				PlayerReplayView view = range.replayFile.view(range.playerIdx);
+				int i = view.unitIndex(unitId);
+				if (i >= 0) {
+					return view.getUnit(i);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Units in the given unit group of the player, in unitId order. The units answer attribute
+	 * queries from the player's view.
+	 */
+	public List<Unit> getUnitGroup(long playerReplayId, long unitGroupId) throws SQLException {
+		PlayerReplay p = getPlayerReplay(playerReplayId);
+		ReplayFile rf = replayByPlayerId.get(p.playerReplayIdDb);
+		int idx = rf.playerIndex(p.playerReplayIdDb);
+		Section s = rf.section(idx, SEC_UNIT_GROUPS);
+		PlayerReplayView view = rf.view(idx);
+		List<Unit> units = new ArrayList<>();
+		for (int i = s.lowerBound(0, unitGroupId); i < s.rows && s.getLong(0, i) == unitGroupId;
+				i++) {
+			int unitIdx = view.unitIndex(s.getLong(1, i));
+			if (unitIdx >= 0) {
+				units.add(view.getUnit(unitIdx));
+			}
+		}
+		return units;
+	}
+
+	private ReplayFile getReplayFile(int replayId) throws SQLException {
+		ReplayFile rf = replayById.get(replayId);
+		if (rf == null) {
+			throw new SQLException("No replay found in cache with ID " + replayId);
+		}
+		return rf;
+	}
+
+	private MapFile getMapFile(int mapId) throws SQLException {
+		MapFile mf = mapFiles.get(mapId);
+		if (mf == null) {
+			throw new SQLException("No map found for mapId " + mapId);
+		}
+		return mf;
+	}
+
+	static void checkHeader(ByteBuffer buf) throws IOException {
+		if (buf.getInt() != MAGIC) {
+			throw new IOException("Not a replay cache file");
+		}
+		int version = buf.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported replay cache version " + version);
+		}
+	}
+
+	static String getString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static void putString(ByteBuffer buf, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		buf.putInt(bytes.length);
+		buf.put(bytes);
+	}
+
+	static int stringSize(String s) {
+		return 4 + s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	/**
+	 * A view of one section in a (mapped) buffer. Only absolute reads are used, so it can be
+	 * shared between threads.
+	 */
+	static class Section {
+		final ByteBuffer buf;
+		final int rows;
+		private final int[] widths;
+		private final int[] colStart;
+
+		Section(ByteBuffer buf, long offset, int[] widths) {
+			this.buf = buf;
+			this.widths = widths;
+			rows = buf.getInt((int) offset);
+			colStart = new int[widths.length];
+			int pos = (int) offset + 4;
+			for (int c = 0; c < widths.length; c++) {
+				colStart[c] = pos;
+				pos += widths[c] * rows;
+			}
+		}
+
+		/** Total size in bytes of a section with the given columns and number of rows */
+		static int size(int[] widths, int rows) {
+			int size = 4;
+			for (int w : widths) {
+				size += w * rows;
+			}
+			return size;
+		}
+
+		int getInt(int col, int row) {
+			return buf.getInt(colStart[col] + row * 4);
+		}
+
+		long getLong(int col, int row) {
+			return buf.getLong(colStart[col] + row * 8);
+		}
+
+		byte getByte(int col, int row) {
+			return buf.get(colStart[col] + row);
+		}
+
+		/** Get an int or long column value as a long */
+		long getValue(int col, int row) {
+			return widths[col] == 8 ? getLong(col, row) : getInt(col, row);
+		}
+
+		/** First row where the (sorted) column is &gt;= value, or rows if there is none */
+		int lowerBound(int col, long value) {
+			int lo = 0;
+			int hi = rows;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (getValue(col, mid) < value) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * Builds a section in memory, column by column, ready to be written out. Row values can be set
+	 * in any order.
+	 */
+	static class SectionWriter {
+		private final ByteBuffer buf;
+		private final int[] colStart;
+
+		SectionWriter(int[] widths, int rows) {
+			buf = ByteBuffer.allocate(Section.size(widths, rows));
+			buf.putInt(0, rows);
+			colStart = new int[widths.length];
+			int pos = 4;
+			for (int c = 0; c < widths.length; c++) {
+				colStart[c] = pos;
+				pos += widths[c] * rows;
+			}
+		}
+
+		void putInt(int col, int row, int value) {
+			buf.putInt(colStart[col] + row * 4, value);
+		}
+
+		void putLong(int col, int row, long value) {
+			buf.putLong(colStart[col] + row * 8, value);
+		}
+
+		void putByte(int col, int row, int value) {
+			buf.put(colStart[col] + row, (byte) value);
+		}
+
+		byte[] array() {
+			return buf.array();
+		}
+	}
+
+	/**
+	 * A replay file: magic, version, replayId, mapId, duration, replay name, number of players,
+	 * then for each player: id, name, winner, raceId, startPosBtId and the offset of each of the
+	 * player's sections; then the offset of the events section. Sections follow the header.
+	 */
+	private static class ReplayFile {
+		final ByteBuffer buf;
+		final Replay replay;
+		final List<PlayerReplay> players = new ArrayList<>();
+		final long[][] sectionOffsets;
+		final long eventsOffset;
+		/** Created when first needed. Views are immutable so a racy init is harmless. */
+		private final PlayerReplayView[] views;
+
+		ReplayFile(ByteBuffer mapped) throws IOException {
+			buf = mapped;
+			ByteBuffer header = mapped.duplicate();
+			checkHeader(header);
+			int replayId = header.getInt();
+			int mapId = header.getInt();
+			int duration = header.getInt();
+			replay = new Replay(replayId, mapId, getString(header), duration);
+			int numPlayers = header.getInt();
+			sectionOffsets = new long[numPlayers][];
+			for (int p = 0; p < numPlayers; p++) {
+				int id = header.getInt();
+				String name = getString(header);
+				boolean winner = header.get() != 0;
+				int raceId = header.getInt();
+				long startPosBtId = header.getLong();
+				players.add(new PlayerReplay(id, name, winner, raceId, replayId, startPosBtId));
+				sectionOffsets[p] = new long[PLAYER_SECTION_COLS.length];
+				for (int s = 0; s < PLAYER_SECTION_COLS.length; s++) {
+					sectionOffsets[p][s] = header.getLong();
+				}
+			}
+			eventsOffset = header.getLong();
+			views = new PlayerReplayView[numPlayers];
+		}
+
+		int playerIndex(int playerReplayId) {
+			for (int i = 0; i < players.size(); i++) {
+				if (players.get(i).playerReplayIdDb == playerReplayId) {
+					return i;
+				}
+			}
+			throw new IllegalArgumentException("Player " + playerReplayId + " not in replay "
+					+ replay.dbReplayId);
+		}
+
+		Section section(int playerIdx, int section) {
+			return new Section(buf, sectionOffsets[playerIdx][section],
+					PLAYER_SECTION_COLS[section]);
+		}
+
+		PlayerReplayView view(int playerIdx) {
+			PlayerReplayView view = views[playerIdx];
+			if (view == null) {
+				view = new PlayerReplayView(players.get(playerIdx),
+						section(playerIdx, SEC_UNITS), section(playerIdx, SEC_ATTRIBUTES),
+						section(playerIdx, SEC_VISIBILITY), section(playerIdx, SEC_FIRST_SEEN),
+						section(playerIdx, SEC_RESOURCES));
+				views[playerIdx] = view;
+			}
+			return view;
+		}
+	}
+
+	/** The first and last unit IDs in one player's units section */
+	private static class UnitRange {
+		final long first;
+		final long last;
+		/** Largest last ID of this and all the ranges sorted before it */
+		long maxLast;
+		final ReplayFile replayFile;
+		final int playerIdx;
+
+		UnitRange(long first, long last, ReplayFile replayFile, int playerIdx) {
+			this.first = first;
+			this.last = last;
+			this.replayFile = replayFile;
+			this.playerIdx = playerIdx;
+		}
+	}
+
+	/**
+	 * A map file: magic, version, mapId, map name, numStartPos, xSize, ySize, then the offset of
+	 * the tiles section, which follows.
+	 */
+	private static class MapFile {
+		final ScMap map;
+		final Section tiles;
+		/** The tiles' buildTileIds, sorted, and the row of each in the tiles section */
+		final long[] tileIds;
+		final int[] tileRows;
+
+		MapFile(ByteBuffer mapped) throws IOException {
+			ByteBuffer header = mapped.duplicate();
+			checkHeader(header);
+			int mapId = header.getInt();
+			String name = getString(header);
+			int numStartPos = header.getInt();
+			int xSize = header.getInt();
+			int ySize = header.getInt();
+			map = new ScMap(mapId, name, numStartPos, xSize, ySize);
+			tiles = new Section(mapped, header.getLong(), TILE_COLS);
+			Integer[] order = new Integer[tiles.rows];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order,
+					(r1, r2) -> Long.compare(tiles.getLong(2, r1), tiles.getLong(2, r2)));
+			tileIds = new long[order.length];
+			tileRows = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				tileRows[i] = order[i];
+				tileIds[i] = tiles.getLong(2, order[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,277 @@
+package scdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import scdb.ReplayCache.SectionWriter;
+import util.DbConnection;
+import util.LogManager;
+
+/**
+ * Copies replay data from the database into a directory of {@link ReplayCache} files. Replays (and
+ * maps) that have already been exported are skipped, so it can be re-run as more replays are added
+ * to the database.
+ */
+public class ReplayCacheExporter {
+	private static final Logger LOGGER = Logger.getLogger(ReplayCacheExporter.class.getName());
+
+	private final File dir;
+	private final DbConnection dbc;
+
+	public static void main(String[] args) {
+		LogManager.initialise("ReplayCacheExporter");
+		if (args.length != 1) {
+			System.err.println("Usage: ReplayCacheExporter <outputDirectory>");
+			return;
+		}
+		File dir = new File(args[0]);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			LOGGER.severe("Unable to create directory " + dir.getAbsolutePath());
+			return;
+		}
+		try {
+			new ReplayCacheExporter(dir, DbInterface.getInstance().getDbc()).exportAll();
+		} catch (SQLException | IOException e) {
+			LOGGER.log(Level.SEVERE, "Export failed", e);
+		}
+		LOGGER.info("Finished");
+	}
+
+	public ReplayCacheExporter(File dir, DbConnection dbc) {
+		this.dir = dir;
+		this.dbc = dbc;
+	}
+
+	/** Export all replays in the DB that aren't already in the output directory */
+	public void exportAll() throws SQLException, IOException {
+		List<long[]> replays = rows("SELECT replayId, mapId FROM replay ORDER BY replayId", null);
+		int count = 0;
+		for (long[] r : replays) {
+			int replayId = (int) r[0];
+			int mapId = (int) r[1];
+			if (!ReplayCache.mapFile(dir, mapId).exists()) {
+				exportMap(mapId);
+			}
+			if (!ReplayCache.replayFile(dir, replayId).exists()) {
+				exportReplay(replayId);
+				count++;
+			}
+		}
+		LOGGER.info("Exported " + count + " of " + replays.size() + " replays");
+	}
+
+	/** Write the file for one replay */
+	public void exportReplay(int replayId) throws SQLException, IOException {
+		Replay replay;
+		int mapId;
+		try (ResultSet rs = dbc.executeQuery("SELECT * FROM replay WHERE replayId=?", replayId)) {
+			if (!rs.next()) {
+				throw new SQLException("No replay found with ID " + replayId);
+			}
+			replay = new Replay(rs);
+			mapId = rs.getInt("MapId");
+		}
+		List<PlayerReplay> players = new ArrayList<>();
+		List<Integer> raceIds = new ArrayList<>();
+		try (ResultSet rs = dbc.executeQuery(
+				"SELECT * FROM playerreplay WHERE replayId=? ORDER BY playerReplayId", replayId)) {
+			while (rs.next()) {
+				players.add(new PlayerReplay(rs));
+				raceIds.add(rs.getInt("RaceId"));
+			}
+		}
+
+		List<SectionWriter[]> playerSections = new ArrayList<>();
+		for (PlayerReplay p : players) {
+			playerSections.add(playerSections(p.playerReplayIdDb));
+		}
+		SectionWriter events = section(ReplayCache.EVENT_COLS, rows(
+				"SELECT eventId, frame, eventTypeId, unitId, buildTileId FROM event"
+				+ " WHERE replayId=? ORDER BY frame, eventId", replayId));
+
+		// Header size is needed before the section offsets can be written
+		int headerSize = 4 * 5 + ReplayCache.stringSize(replay.replayFileName) + 4;
+		for (PlayerReplay p : players) {
+			headerSize += 4 + ReplayCache.stringSize(p.name) + 1 + 4 + 8
+					+ 8 * ReplayCache.PLAYER_SECTION_COLS.length;
+		}
+		headerSize += 8;
+		long size = headerSize + events.array().length;
+		for (SectionWriter[] sections : playerSections) {
+			for (SectionWriter s : sections) {
+				size += s.array().length;
+			}
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Replay " + replayId + " too large to export: " + size);
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate((int) size);
+		buf.putInt(ReplayCache.MAGIC);
+		buf.putInt(ReplayCache.VERSION);
+		buf.putInt(replayId);
+		buf.putInt(mapId);
+		buf.putInt(replay.duration);
+		ReplayCache.putString(buf, replay.replayFileName);
+		buf.putInt(players.size());
+		long offset = headerSize;
+		for (int i = 0; i < players.size(); i++) {
+			PlayerReplay p = players.get(i);
+			buf.putInt(p.playerReplayIdDb);
+			ReplayCache.putString(buf, p.name);
+			buf.put((byte) (p.winner ? 1 : 0));
+			buf.putInt(raceIds.get(i));
+			buf.putLong(p.dbStartPosBtId);
+			for (SectionWriter s : playerSections.get(i)) {
+				buf.putLong(offset);
+				offset += s.array().length;
+			}
+		}
+		buf.putLong(offset);
+		for (SectionWriter[] sections : playerSections) {
+			for (SectionWriter s : sections) {
+				buf.put(s.array());
+			}
+		}
+		buf.put(events.array());
+		write(ReplayCache.replayFile(dir, replayId), buf.array());
+		LOGGER.info("Exported replay " + replayId);
+	}
+
+	private SectionWriter[] playerSections(int id) throws SQLException {
+		SectionWriter[] sections = new SectionWriter[ReplayCache.PLAYER_SECTION_COLS.length];
+		sections[ReplayCache.SEC_ACTIONS] = section(ReplayCache.ACTION_COLS, rows(
+				"SELECT actionId, frame, unitCommandTypeId, orderTypeId, unitGroupId, targetId,"
+				+ " targetX, targetY, delayed FROM action WHERE playerReplayId=?"
+				+ " ORDER BY frame, actionid", id));
+
+		List<long[]> actionyEvents = dbc.queryList(PlayerReplay.ACTIONY_EVENTS_QUERY, id, rs -> {
+			ActionyEvent e = new ActionyEvent(rs);
+			return new long[] {e.eventIdDb, e.frame, e.targetId, e.unitIdDb};
+		});
+		sections[ReplayCache.SEC_ACTIONY_EVENTS] =
+				section(ReplayCache.ACTIONY_EVENT_COLS, actionyEvents);
+
+		List<long[]> units = rows("SELECT unitId, unitTypeId FROM unit WHERE playerReplayId=?"
+				+ " ORDER BY unitId", id);
+		sections[ReplayCache.SEC_UNITS] = section(ReplayCache.UNIT_COLS, units);
+		Map<Long, Integer> unitIndex = new HashMap<>();
+		for (int i = 0; i < units.size(); i++) {
+			unitIndex.put(units.get(i)[0], i);
+		}
+		List<long[]> attributes = rows("SELECT unitId, attributeTypeId, changeTime, changeVal"
+				+ " FROM attributeChange NATURAL JOIN unit WHERE playerReplayId=?"
+				+ " ORDER BY unitId, attributeTypeId, changeTime", id);
+		for (long[] row : attributes) {
+			row[0] = unitIndex.get(row[0]);
+		}
+		sections[ReplayCache.SEC_ATTRIBUTES] = section(ReplayCache.ATTRIBUTE_COLS, attributes);
+
+		List<long[]> visibility = rows(
+				"SELECT unitId, changeTime, changeVal FROM visibilitychange WHERE viewerId=?"
+				+ " ORDER BY unitId, changeTime", id);
+		sections[ReplayCache.SEC_VISIBILITY] = section(ReplayCache.VISIBILITY_COLS, visibility);
+		List<long[]> firstSeen = new ArrayList<>();
+		for (long[] row : visibility) {
+			if (row[2] != 0 && (firstSeen.isEmpty()
+					|| firstSeen.get(firstSeen.size() - 1)[0] != row[0])) {
+				firstSeen.add(new long[] {row[0], row[1]});
+			}
+		}
+		sections[ReplayCache.SEC_FIRST_SEEN] = section(ReplayCache.FIRST_SEEN_COLS, firstSeen);
+		sections[ReplayCache.SEC_RESOURCES] = section(ReplayCache.RESOURCE_COLS, rows(
+				"SELECT frame, minerals, gas, supply, totalMinerals, totalGas, totalSupply"
+				+ " FROM resourceChange WHERE playerReplayId=? ORDER BY frame", id));
+		sections[ReplayCache.SEC_UNIT_GROUPS] = section(ReplayCache.UNIT_GROUP_COLS, rows(
+				"SELECT unitGroupId, unitId FROM unitgroup NATURAL JOIN unit"
+				+ " WHERE playerReplayId=? ORDER BY unitGroupId, unitId", id));
+		return sections;
+	}
+
+	/** Write the file for one map, including its build tiles */
+	public void exportMap(int mapId) throws SQLException, IOException {
+		String mapName;
+		int numStartPos;
+		try (ResultSet rs = dbc.executeQuery("SELECT * FROM map WHERE mapId=?", mapId)) {
+			if (!rs.next()) {
+				throw new SQLException("No map found for mapId " + mapId);
+			}
+			mapName = rs.getString("mapName");
+			numStartPos = rs.getInt("numStartPos");
+		}
+		// Same size as Replay.getMap() gives
+		long[] size = rows("SELECT MAX(bTilePosX), MAX(bTilePosY) FROM buildtile WHERE mapId=?",
+				mapId).get(0);
+		SectionWriter tiles = section(ReplayCache.TILE_COLS, rows(
+				"SELECT bTilePosX, bTilePosY, buildTileId, groundHeightId, buildable, walkable,"
+				+ " chokeDist, baseLocationDist, startLocationDist, regionId FROM buildtile"
+				+ " WHERE mapId=? ORDER BY bTilePosX, bTilePosY", mapId));
+
+		int headerSize = 4 * 3 + ReplayCache.stringSize(mapName) + 4 * 3 + 8;
+		ByteBuffer buf = ByteBuffer.allocate(headerSize + tiles.array().length);
+		buf.putInt(ReplayCache.MAGIC);
+		buf.putInt(ReplayCache.VERSION);
+		buf.putInt(mapId);
+		ReplayCache.putString(buf, mapName);
+		buf.putInt(numStartPos);
+		buf.putInt((int) size[0]);
+		buf.putInt((int) size[1]);
+		buf.putLong(headerSize);
+		buf.put(tiles.array());
+		write(ReplayCache.mapFile(dir, mapId), buf.array());
+		LOGGER.info("Exported map " + mapId);
+	}
+
+	/** All rows of the query with each column read as a long. Nulls are stored as -1. */
+	private List<long[]> rows(String sql, Object data) throws SQLException {
+		return dbc.queryList(sql, data, rs -> {
+			long[] row = new long[rs.getMetaData().getColumnCount()];
+			for (int c = 0; c < row.length; c++) {
+				row[c] = rs.getLong(c + 1);
+				if (rs.wasNull()) {
+					row[c] = -1;
+				}
+			}
+			return row;
+		});
+	}
+
+	private static SectionWriter section(int[] widths, List<long[]> rows) {
+		SectionWriter s = new SectionWriter(widths, rows.size());
+		for (int r = 0; r < rows.size(); r++) {
+			long[] row = rows.get(r);
+			for (int c = 0; c < widths.length; c++) {
+				switch (widths[c]) {
+				case 8:
+					s.putLong(c, r, row[c]);
+					break;
+				case 4:
+					s.putInt(c, r, (int) row[c]);
+					break;
+				default:
+					s.putByte(c, r, (int) row[c]);
+					break;
+				}
+			}
+		}
+		return s;
+	}
+
+	/** Write via a temporary file so a partly written file is never picked up */
+	private static void write(File f, byte[] data) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		Files.write(tmp.toPath(), data);
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
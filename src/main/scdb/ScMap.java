@@ -29,15 +29,24 @@ public class ScMap {
 	}
 	
 	public BuildTile[][] getBuildTiles() {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			try {
+				return cache.getBuildTiles(this);
+			} catch (SQLException e) {
+				LOGGER.log(Level.SEVERE, "Failed to get build tiles on map " + dbMapId, e);
+				return new BuildTile[xSize][ySize];
+			}
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		BuildTile[][] tiles = new BuildTile[xSize][ySize];
 		
-		try (ResultSet rs = dbc.executeQuery("SELECT * FROM buildTile WHERE mapId=?", dbMapId); ) {
-			while (rs.next()) {
+		try {
+			dbc.streamQuery("SELECT * FROM buildTile WHERE mapId=?", dbMapId, rs -> {
 				int x = rs.getInt("BTilePosX");
 				int y = rs.getInt("BTilePosY");
 				tiles[x][y] = new BuildTile(rs);
-			}
+			});
 		} catch (SQLException e) {
 			LOGGER.log(Level.SEVERE, "Failed to get build tiles on map " + dbMapId, e);
 		}
@@ -45,6 +54,10 @@ public class ScMap {
 	}
 	
 	public BuildTile getBuildTile(int bTilePosX, int bTilePosY) throws SQLException {
+		ReplayCache cache = DbInterface.getInstance().getReplayCache();
+		if (cache != null) {
+			return cache.getBuildTile(dbMapId, bTilePosX, bTilePosY);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		List<Object> data = new ArrayList<>();
 		data.add(dbMapId);
@@ -18,6 +18,17 @@ public class Unit {
 	
 	public final long unitIdDb;
 	public final UnitType unitType; 
+	/**
+	 * All attribute changes for this unit, if they have been loaded in bulk (eg. by a
+	 * {@link PlayerReplaySnapshot}). Otherwise null and attributes are queried as needed.
+	 */
+	private UnitTimeline timeline = null;
+	/**
+	 * The view of the local replay cache this unit was read from (along with its index in the view)
+	 * if it has no timeline, or null.
+	 */
+	private PlayerReplayView view = null;
+	private int viewIndex = -1;
 	
 	public Unit(long unitIdDb, int unitTypeId) {
 		this.unitIdDb = unitIdDb;
@@ -32,12 +43,34 @@ public class Unit {
 		return unitType;
 	}
 	
+	/** Use the given timeline to answer attribute queries instead of the DB. */
+	void setTimeline(UnitTimeline timeline) {
+		this.timeline = timeline;
+	}
+	
+	/** Use the given view to answer attribute queries instead of the DB. */
+	void setView(PlayerReplayView view, int viewIndex) {
+		this.view = view;
+		this.viewIndex = viewIndex;
+	}
+	
+	/** The attribute timeline of this unit, or null if it hasn't been loaded. */
+	public UnitTimeline getTimeline() {
+		return timeline;
+	}
+	
 	/**
 	 * Get the latest value for an attribute up to and including the given frame. If no attribute
 	 * changes were found, returns 0. See also {@link #getAttributes(int)} and
 	 * {@link #isExisting(int)}
 	 */
 	public int getAttribute(int frame, UnitAttribute attribute) {
+		if (timeline != null) {
+			return timeline.getAttribute(frame, attribute);
+		}
+		if (view != null) {
+			return view.getAttribute(viewIndex, frame, attribute);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		int attributeValue = 0;
 		
@@ -65,6 +98,9 @@ public class Unit {
 	
 	/** Get all attributes of this unit up to a particular frame. */
 	public UnitAttributes getAttributes(int frame) {
+		if (timeline != null) {
+			return timeline.getAttributes(frame);
+		}
 		int[] attributes = new int[UnitAttributes.NUM_ATTRIBUTES];
 		for (UnitAttribute attribute : UnitAttribute.values()) {
 			attributes[attribute.getId()] = getAttribute(frame, attribute);
@@ -78,6 +114,10 @@ public class Unit {
 	 * @see {@link #visibleToBy(PlayerReplay, int)}
 	 */
 	public boolean visibleTo(PlayerReplay p, int frame) {
+		PlayerReplayView pView = p.getCachedView();
+		if (pView != null) {
+			return pView.canSee(unitIdDb, frame);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		boolean visible = false;
 		
@@ -105,6 +145,10 @@ public class Unit {
 	 * @see {@link #visibleTo(PlayerReplay, int)}
 	 */
 	public boolean visibleToBy(PlayerReplay p, int frame) {
+		PlayerReplayView pView = p.getCachedView();
+		if (pView != null) {
+			return pView.hasSeen(unitIdDb, frame);
+		}
 		DbConnection dbc = DbInterface.getInstance().getDbc();
 		boolean visible = false;
 		
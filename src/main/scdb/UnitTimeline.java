@@ -0,0 +1,187 @@
+package scdb;
+
+import java.util.Arrays;
+
+import util.UnitAttributes;
+import util.UnitAttributes.UnitAttribute;
+
+/**
+ * All the attribute changes of a single unit, stored column-wise: for each attribute a sorted
+ * array of change times and a matching array of values. Looking up the value of an attribute in a
+ * given frame is a binary search rather than a DB query. Immutable once built, use a
+ * {@link Builder} to create one.
+ */
+public class UnitTimeline {
+	private static final int[] EMPTY = new int[0];
+
+	/** Change times for each attribute, indexed by attribute ID, sorted ascending */
+	private final int[][] changeTimes;
+	/** Values for each attribute, indexed by attribute ID, matching changeTimes */
+	private final int[][] values;
+
+	private UnitTimeline(int[][] changeTimes, int[][] values) {
+		this.changeTimes = changeTimes;
+		this.values = values;
+	}
+
+	/**
+	 * Get the latest value for an attribute up to and including the given frame. If no attribute
+	 * changes were found, returns 0 (the same as {@link Unit#getAttribute(int, UnitAttribute)}).
+	 */
+	public int getAttribute(int frame, UnitAttribute attribute) {
+		int id = attribute.getId();
+		int idx = indexAtOrBefore(changeTimes[id], frame);
+		return idx < 0 ? 0 : values[id][idx];
+	}
+
+	/** Whether the unit exists in a certain frame, for convenience. */
+	public boolean isExisting(int frame) {
+		return getAttribute(frame, UnitAttribute.Exists) == 1;
+	}
+
+	/** Get all attributes of this unit up to a particular frame. */
+	public UnitAttributes getAttributes(int frame) {
+		int[] attributes = new int[UnitAttributes.NUM_ATTRIBUTES];
+		for (int id = 0; id < attributes.length; id++) {
+			int idx = indexAtOrBefore(changeTimes[id], frame);
+			attributes[id] = idx < 0 ? 0 : values[id][idx];
+		}
+		return new UnitAttributes(attributes);
+	}
+
+	/** Number of recorded changes for the attribute. */
+	public int numChanges(UnitAttribute attribute) {
+		return changeTimes[attribute.getId()].length;
+	}
+
+	/** Time of the i'th change (in time order) of the attribute. */
+	public int getChangeTime(UnitAttribute attribute, int i) {
+		return changeTimes[attribute.getId()][i];
+	}
+
+	/** Value after the i'th change (in time order) of the attribute. */
+	public int getChangeValue(UnitAttribute attribute, int i) {
+		return values[attribute.getId()][i];
+	}
+
+	/**
+	 * Iterate over the changes to an attribute after frameStart, up to and including frameEnd. Use
+	 * like: <code>for (Changes c = t.changesBetween(...); c.next(); ) { c.time(); c.value(); }
+	 * </code>
+	 */
+	public Changes changesBetween(UnitAttribute attribute, int frameStart, int frameEnd) {
+		int id = attribute.getId();
+		int from = indexAtOrBefore(changeTimes[id], frameStart) + 1;
+		int to = indexAtOrBefore(changeTimes[id], frameEnd) + 1;
+		return new Changes(changeTimes[id], values[id], from, Math.max(from, to));
+	}
+
+	/** Index of the last time &lt;= frame, or -1 if all times are after frame */
+	private static int indexAtOrBefore(int[] times, int frame) {
+		int lo = 0;
+		int hi = times.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[mid] <= frame) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return hi;
+	}
+
+	/** A forward-only cursor over a range of changes to one attribute. */
+	public static class Changes {
+		private final int[] times;
+		private final int[] values;
+		private final int end;
+		private int idx;
+
+		private Changes(int[] times, int[] values, int start, int end) {
+			this.times = times;
+			this.values = values;
+			this.idx = start - 1;
+			this.end = end;
+		}
+
+		/** Move to the next change. Returns false when there are no more changes. */
+		public boolean next() {
+			return ++idx < end;
+		}
+
+		public int time() {
+			return times[idx];
+		}
+
+		public int value() {
+			return values[idx];
+		}
+	}
+
+	/**
+	 * Collects attribute changes for a unit. Changes may be added in any order, although it's a bit
+	 * faster if they are added in time order for each attribute.
+	 */
+	public static class Builder {
+		private final int[][] times = new int[UnitAttributes.NUM_ATTRIBUTES][];
+		private final int[][] values = new int[UnitAttributes.NUM_ATTRIBUTES][];
+		private final int[] sizes = new int[UnitAttributes.NUM_ATTRIBUTES];
+		private final boolean[] unsorted = new boolean[UnitAttributes.NUM_ATTRIBUTES];
+
+		public Builder add(int attributeId, int changeTime, int changeVal) {
+			int size = sizes[attributeId];
+			if (times[attributeId] == null) {
+				times[attributeId] = new int[4];
+				values[attributeId] = new int[4];
+			} else if (size == times[attributeId].length) {
+				times[attributeId] = Arrays.copyOf(times[attributeId], size * 2);
+				values[attributeId] = Arrays.copyOf(values[attributeId], size * 2);
+			}
+			if (size > 0 && times[attributeId][size - 1] > changeTime) {
+				unsorted[attributeId] = true;
+			}
+			times[attributeId][size] = changeTime;
+			values[attributeId][size] = changeVal;
+			sizes[attributeId]++;
+			return this;
+		}
+
+		public UnitTimeline build() {
+			int[][] builtTimes = new int[UnitAttributes.NUM_ATTRIBUTES][];
+			int[][] builtValues = new int[UnitAttributes.NUM_ATTRIBUTES][];
+			for (int id = 0; id < builtTimes.length; id++) {
+				int size = sizes[id];
+				if (size == 0) {
+					builtTimes[id] = EMPTY;
+					builtValues[id] = EMPTY;
+					continue;
+				}
+				int[] t = Arrays.copyOf(times[id], size);
+				int[] v = Arrays.copyOf(values[id], size);
+				if (unsorted[id]) {
+					sortByTime(t, v);
+				}
+				builtTimes[id] = t;
+				builtValues[id] = v;
+			}
+			return new UnitTimeline(builtTimes, builtValues);
+		}
+
+		/** Stable insertion sort of both arrays by time. Input is normally (almost) sorted. */
+		private static void sortByTime(int[] t, int[] v) {
+			for (int i = 1; i < t.length; i++) {
+				int time = t[i];
+				int value = v[i];
+				int j = i - 1;
+				while (j >= 0 && t[j] > time) {
+					t[j + 1] = t[j];
+					v[j + 1] = v[j];
+					j--;
+				}
+				t[j + 1] = time;
+				v[j + 1] = value;
+			}
+		}
+	}
+}
@@ -9,6 +9,8 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,6 +19,16 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * A connection to the database, with a cache of prepared statements. Not thread-safe: ResultSets
+ * returned are tied to cached statements, so each connection must only be used by one thread at a
+ * time. Use a {@link DbConnectionPool} to share connections between threads.<br>
+ * Large results should be read with {@link #streamQuery(String, List, RowHandler)} or
+ * {@link #queryList(String, List, RowMapper)}, which fetch rows in batches of
+ * <code>db_fetch_size</code> through a forward-only, read-only cursor instead of the driver
+ * reading the whole result into memory first. Lookups of many rows by ID can be done in a few
+ * round trips with {@link #queryIn(String, Collection, RowMapper)}.
+ */
 public class DbConnection implements AutoCloseable {
 	private static final Logger LOGGER = Logger.getLogger(DbConnection.class.getName());
 
@@ -24,11 +36,20 @@ public class DbConnection implements AutoCloseable {
 	private static final String PROPERTIES_FILENAME = "databaseConfig.properties";
 	/** Whether to prevent the program from performing changes to the DB (eg. insert, delete) */
 	private final boolean debugMode;
+	/**
+	 * Rows to fetch per round trip for streaming queries. Only has an effect for MySQL if
+	 * useCursorFetch=true is in the db_url. 0 uses the driver default.
+	 */
+	private final int fetchSize;
+	/** Maximum number of IDs in each IN (...) list of a {@link #queryIn} query */
+	public static final int IN_BATCH_SIZE = 512;
 
 	// Store most-recently used PreparedStatements to save on construction/garbage collection
 	private final MRU<String, PreparedStatement> mru = new MRU<>(200);
+	/** As above, for forward-only, read-only statements with a fetch size set */
+	private final MRU<String, PreparedStatement> streamingMru = new MRU<>(50);
 	private Connection con = null;
-	private boolean connected = false;
+	private volatile boolean connected = false;
 	private PreparedStatement getInsertId = null;
 	
 	public DbConnection() throws IOException, SQLException {
@@ -38,6 +59,7 @@ public class DbConnection implements AutoCloseable {
 		String dbUser = Util.getPropertyNotNull(props, "db_user");
 		String dbPw = Util.getPropertyNotNull(props, "db_pw");
 		debugMode = Boolean.parseBoolean(Util.getPropertyNotNull(props, "db_debug_mode"));
+		fetchSize = Integer.parseInt(props.getProperty("db_fetch_size", "1000"));
 		
 		if (debugMode) {
 			LOGGER.warning("DATABASE DEBUG MODE ACTIVE");
@@ -70,6 +92,78 @@ public class DbConnection implements AutoCloseable {
 		return ps.executeQuery();
 	}
 	
+	/**
+	 * Execute the query and pass each row to the handler as it is fetched. Rows are fetched in
+	 * batches through a forward-only, read-only cursor, which is closed before returning.
+	 */
+	public void streamQuery(String sql, List<? extends Object> data, RowHandler handler)
+			throws SQLException {
+		PreparedStatement ps = prepareStreaming(sql, data);
+		try (ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				handler.handle(rs);
+			}
+		}
+	}
+	
+	/** As {@link #streamQuery(String, List, RowHandler)} with a single parameter */
+	public void streamQuery(String sql, Object data, RowHandler handler) throws SQLException {
+		List<Object> dataList = new ArrayList<>(1);
+		dataList.add(data);
+		streamQuery(sql, dataList, handler);
+	}
+	
+	/** Execute the query, streaming the results, and map each row to an object */
+	public <T> List<T> queryList(String sql, List<? extends Object> data, RowMapper<T> mapper)
+			throws SQLException {
+		List<T> results = new ArrayList<>();
+		streamQuery(sql, data, rs -> results.add(mapper.map(rs)));
+		return results;
+	}
+	
+	/** As {@link #queryList(String, List, RowMapper)} with a single parameter */
+	public <T> List<T> queryList(String sql, Object data, RowMapper<T> mapper)
+			throws SQLException {
+		List<Object> dataList = new ArrayList<>(1);
+		dataList.add(data);
+		return queryList(sql, dataList, mapper);
+	}
+	
+	/**
+	 * Query for many IDs at once. The sql must contain a single "%s" where the list of IDs goes,
+	 * eg. <code>SELECT * FROM unit WHERE unitId IN (%s)</code>. IDs are sent in batches of up to
+	 * {@link #IN_BATCH_SIZE}, and the last batch is padded (by repeating an ID) to one of a few
+	 * fixed sizes so that the prepared statements can be reused. Rows are returned in the order
+	 * the DB gives them.
+	 */
+	public <T> List<T> queryIn(String sql, Collection<? extends Object> ids, RowMapper<T> mapper)
+			throws SQLException {
+		List<T> results = new ArrayList<>();
+		Iterator<? extends Object> it = ids.iterator();
+		List<Object> batch = new ArrayList<>();
+		while (it.hasNext()) {
+			batch.clear();
+			while (it.hasNext() && batch.size() < IN_BATCH_SIZE) {
+				batch.add(it.next());
+			}
+			int size = 1;
+			while (size < batch.size()) {
+				size *= 8;
+			}
+			size = Math.min(size, IN_BATCH_SIZE);
+			Object last = batch.get(batch.size() - 1);
+			while (batch.size() < size) {
+				batch.add(last);
+			}
+			StringBuilder params = new StringBuilder("?");
+			for (int i = 1; i < size; i++) {
+				params.append(",?");
+			}
+			streamQuery(sql.replace("%s", params), batch, rs -> results.add(mapper.map(rs)));
+		}
+		return results;
+	}
+	
 	/** Execute the query and return the value of the first column (usually the ID) as a long. */
 	public long queryFirstColumn(String sql, List<? extends Object> data) throws SQLException {
 		ResultSet rs = executeQuery(sql, data);
@@ -243,6 +337,30 @@ public class DbConnection implements AutoCloseable {
 			LOGGER.finest("Storing prepared statement in mru");
 			mru.put(sql, ps);
 		}
+		setParameters(ps, sql, data);
+		return ps;
+	}
+	
+	/** As {@link #prepare(String, List)} but forward-only and read-only, with the fetch size set */
+	private PreparedStatement prepareStreaming(String sql, List<? extends Object> data)
+			throws SQLException {
+		if (!connected) {
+			LOGGER.warning("connection closed then used!");
+			throw new SQLException("Connection closed then used!");
+		}
+		PreparedStatement ps = streamingMru.get(sql);
+		if (ps == null) {
+			ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+			ps.setFetchSize(fetchSize);
+			streamingMru.put(sql, ps);
+		}
+		setParameters(ps, sql, data);
+		return ps;
+	}
+	
+	private static void setParameters(PreparedStatement ps, String sql,
+			List<? extends Object> data) throws SQLException {
 		ps.clearParameters();
 		if (data != null) {
 			for (int i = 0; i < data.size(); i++) {
@@ -277,7 +395,6 @@ public class DbConnection implements AutoCloseable {
 				LOGGER.fine("Statement: " + ps.toString());
 			}
 		}
-		return ps;
 	}
 	
 	@Override
@@ -293,6 +410,18 @@ public class DbConnection implements AutoCloseable {
 		connected = false;
 	}
 	
+	/** Called with the ResultSet positioned on each row in turn */
+	@FunctionalInterface
+	public static interface RowHandler {
+		void handle(ResultSet rs) throws SQLException;
+	}
+	
+	/** Creates an object from the row the ResultSet is positioned on */
+	@FunctionalInterface
+	public static interface RowMapper<T> {
+		T map(ResultSet rs) throws SQLException;
+	}
+	
 	private static class MRU<K, V extends AutoCloseable> extends LinkedHashMap<K, V> {
 		private static final long serialVersionUID = 1L;
 		private static final float DEFAULT_LOAD_FACTOR = 0.75f;
@@ -0,0 +1,99 @@
+package util;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of {@link DbConnection}s that can be shared between threads. A DbConnection
+ * (including its cache of prepared statements and any ResultSets it returns) is only ever used by
+ * one thread at a time: a thread leases a connection the first time it calls
+ * {@link #getConnection()} and keeps getting the same one until it calls {@link #release()}.
+ * Threads that ask for a connection when all of them are leased wait until one is released.
+ */
+public class DbConnectionPool implements AutoCloseable {
+	private static final Logger LOGGER = Logger.getLogger(DbConnectionPool.class.getName());
+
+	private final int maxSize;
+	private final BlockingQueue<DbConnection> idle = new LinkedBlockingQueue<>();
+	/** All connections created by the pool, guarded by this */
+	private final List<DbConnection> all = new ArrayList<>();
+	private final ThreadLocal<DbConnection> leased = new ThreadLocal<>();
+	private boolean closed = false;
+
+	public DbConnectionPool(int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the connection leased to the current thread, leasing one first if necessary. Blocks if
+	 * there are no connections available.
+	 */
+	public DbConnection getConnection() throws IOException, SQLException {
+		DbConnection dbc = leased.get();
+		if (dbc != null) {
+			return dbc;
+		}
+		dbc = idle.poll();
+		if (dbc == null) {
+			dbc = createIfBelowMax();
+		}
+		if (dbc == null) {
+			LOGGER.fine("Waiting for a free connection");
+			try {
+				dbc = idle.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted waiting for a connection", e);
+			}
+		}
+		leased.set(dbc);
+		return dbc;
+	}
+
+	/**
+	 * Return the current thread's connection (if any) to the pool. Any ResultSets obtained from it
+	 * must not be used afterwards.
+	 */
+	public void release() {
+		DbConnection dbc = leased.get();
+		if (dbc != null) {
+			leased.remove();
+			idle.add(dbc);
+		}
+	}
+
+	private synchronized DbConnection createIfBelowMax() throws IOException, SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool closed");
+		}
+		if (all.size() >= maxSize) {
+			return null;
+		}
+		DbConnection dbc = new DbConnection();
+		all.add(dbc);
+		LOGGER.info("Opened database connection " + all.size() + " of max " + maxSize);
+		return dbc;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for (DbConnection dbc : all) {
+			dbc.close();
+		}
+		all.clear();
+		idle.clear();
+	}
+}
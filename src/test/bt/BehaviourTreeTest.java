@@ -0,0 +1,277 @@
+package bt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import scdb.Action;
+import util.LogManager;
+import bt.sc.ActionBtNode;
+import bt.sc.SimilarityMetrics;
+
+public class BehaviourTreeTest {
+	static {
+		LogManager.initialise("BehaviourTreeTest");
+	}
+
+	private int nextActionId = 0;
+
+	/** A sequence of new action nodes, which merge with other actions with the same target */
+	private synchronized List<BtNode> seq(int... targets) {
+		List<BtNode> result = new ArrayList<>();
+		for (int target : targets) {
+			result.add(new ActionBtNode(new Action(nextActionId++, 1, 0, 2, 0, 9, target, 0, 0,
+					false)));
+		}
+		return result;
+	}
+
+	private static int target(BtNode n) {
+		return ((ActionBtNode) n).getActions().get(0).targetId;
+	}
+
+	private static int numActions(BtNode n) {
+		return ((ActionBtNode) n).getNumActions();
+	}
+
+	/** The child of the selector that is a sequence starting with the target's action */
+	private static BtNode branch(BtNode sel, int firstTarget) {
+		for (BtNode child : sel.getChildren()) {
+			if (target(child.getChildren().get(0)) == firstTarget) {
+				return child;
+			}
+		}
+		throw new AssertionError("No branch starting with " + firstTarget);
+	}
+
+	private static int count(BtNode sel, BtNode child) {
+		return ((BtSelNode) sel).getChildCount(child);
+	}
+
+	/** Total number of actions held by the action nodes under the node */
+	private static int countActions(BtNode root) {
+		int[] total = {0};
+		TreeWalker.preOrder(root, n -> {
+			if (n instanceof ActionBtNode) {
+				total[0] += numActions(n);
+			}
+		});
+		return total[0];
+	}
+
+	@Test
+	public void testConcurrentAddSequence() throws Exception {
+		checkConcurrentAddSequence(false);
+	}
+
+	@Test
+	public void testConcurrentAddSequenceInterning() throws Exception {
+		checkConcurrentAddSequence(true);
+	}
+
+	private void checkConcurrentAddSequence(boolean interning) throws Exception {
+		BehaviourTree tree = new BehaviourTree();
+		tree.setInterning(interning);
+		ExecutorService workers = Executors.newFixedThreadPool(8);
+		List<Future<?>> futures = new ArrayList<>();
+		int numSequences = 4000;
+		for (int i = 0; i < numSequences; i++) {
+			// 10 different sequences, of 1 to 10 actions
+			int length = i % 10 + 1;
+			futures.add(workers.submit(() -> {
+				int[] targets = new int[length];
+				for (int j = 0; j < length; j++) {
+					targets[j] = j;
+				}
+				tree.addSequence(seq(targets));
+			}));
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		workers.shutdown();
+
+		BtSelNode root = (BtSelNode) tree.getRoot();
+		assertEquals(10, root.getChildren().size());
+		for (BtNode child : root.getChildren()) {
+			assertEquals(numSequences / 10, root.getChildCount(child));
+			for (BtNode leaf : child.getChildren()) {
+				assertEquals(numSequences / 10, numActions(leaf));
+			}
+		}
+		assertEquals(nextActionId, countActions(root));
+	}
+
+	@Test
+	public void testReadWhileAdding() throws Exception {
+		BehaviourTree tree = new BehaviourTree();
+		ExecutorService workers = Executors.newFixedThreadPool(4);
+		List<Future<?>> futures = new ArrayList<>();
+		int numSequences = 4000;
+		for (int i = 0; i < numSequences; i++) {
+			// Mostly different sequences, so the root keeps getting new children
+			int first = i % 500;
+			futures.add(workers.submit(() -> tree.addSequence(seq(first, first + 1))));
+		}
+		// Walking and reading the counts mustn't fail or see a partly updated selector
+		BtSelNode root = (BtSelNode) tree.getRoot();
+		while (!futures.get(futures.size() - 1).isDone()) {
+			countActions(root);
+			int total = 0;
+			for (int count : root.getChildCounts().values()) {
+				total += count;
+			}
+			assertTrue(total <= numSequences);
+			root.getRepresentativeChild();
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		workers.shutdown();
+		assertEquals(500, root.getChildren().size());
+		assertEquals(nextActionId, countActions(root));
+	}
+
+	@Test
+	public void testAddTree() {
+		BehaviourTree tree = new BehaviourTree();
+		tree.addSequence(seq(1, 2));
+		BehaviourTree other = new BehaviourTree();
+		for (int i = 0; i < 20; i++) {
+			other.addSequence(seq(i, i + 1));
+		}
+		other.addSequence(seq(1, 2));
+		tree.addTree(other);
+
+		// The other tree's (1, 2) sequence is merged with the existing one, counts summed
+		BtSelNode root = (BtSelNode) tree.getRoot();
+		assertEquals(20, root.getChildren().size());
+		int maxCount = 0;
+		int totalCount = 0;
+		for (int count : root.getChildCounts().values()) {
+			maxCount = Math.max(maxCount, count);
+			totalCount += count;
+		}
+		assertEquals(3, maxCount);
+		assertEquals(22, totalCount);
+		assertEquals(nextActionId, countActions(root));
+	}
+
+	@Test
+	public void testInterning() {
+		BehaviourTree tree = new BehaviourTree();
+		tree.setInterning(true);
+		tree.addSequence(seq(1, 2, 1));
+		tree.addSequence(seq(3, 1));
+		tree.addSequence(seq(1, 2, 1));
+		tree.addSequence(seq(1, 2, 1));
+
+		BtSelNode root = (BtSelNode) tree.getRoot();
+		assertEquals(2, root.getChildren().size());
+		BtNode repeated = null;
+		BtNode other = null;
+		for (BtNode child : root.getChildren()) {
+			if (child.getChildren().size() == 3) {
+				repeated = child;
+			} else {
+				other = child;
+			}
+		}
+		assertEquals(3, root.getChildCount(repeated));
+		// Each position keeps its own leaf, holding the actions from every copy
+		Set<BtNode> leaves = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (BtNode leaf : repeated.getChildren()) {
+			assertEquals(3, numActions(leaf));
+			assertTrue(leaves.add(leaf));
+		}
+		for (BtNode leaf : other.getChildren()) {
+			assertEquals(1, numActions(leaf));
+			assertTrue(leaves.add(leaf));
+		}
+		assertEquals(nextActionId, countActions(root));
+	}
+
+	@Test
+	public void testAddSequenceToTrie() {
+		BehaviourTree tree = new BehaviourTree();
+		Function<BtNode, Long> hash = n -> SimilarityMetrics.exactActionHash(n);
+		tree.addSequenceToTrie(seq(1, 2, 3, 4), hash);
+		tree.addSequenceToTrie(seq(1, 2, 3, 4), hash);
+		tree.addSequenceToTrie(seq(1, 2, 5), hash);
+		tree.addSequenceToTrie(seq(1, 2, 5, 6), hash);
+		tree.addSequenceToTrie(seq(1), hash);
+		tree.addSequenceToTrie(seq(7, 8), hash);
+
+		BtNode root = tree.getRoot();
+		assertEquals(2, root.getChildren().size());
+		assertEquals(1, count(root, branch(root, 7)));
+		// 1 is split from 2 by the last sequence, which ends there
+		BtNode one = branch(root, 1);
+		assertEquals(5, count(root, one));
+		assertEquals(2, one.getChildren().size());
+		assertEquals(5, numActions(one.getChildren().get(0)));
+		BtNode afterOne = one.getChildren().get(1);
+		assertEquals(1, afterOne.getChildren().size());
+		BtNode two = branch(afterOne, 2);
+		assertEquals(4, count(afterOne, two));
+		assertEquals(4, numActions(two.getChildren().get(0)));
+		// 2 was split by (1, 2, 5) into 3, 4 and 5, then the branch for 5 extended by 6
+		BtNode afterTwo = two.getChildren().get(1);
+		assertEquals(2, afterTwo.getChildren().size());
+		BtNode three = branch(afterTwo, 3);
+		assertEquals(2, count(afterTwo, three));
+		assertEquals(2, three.getChildren().size());
+		BtNode five = branch(afterTwo, 5);
+		assertEquals(2, count(afterTwo, five));
+		assertEquals(2, numActions(five.getChildren().get(0)));
+		BtNode afterFive = five.getChildren().get(1);
+		assertEquals(1, count(afterFive, branch(afterFive, 6)));
+		assertEquals(nextActionId, countActions(root));
+	}
+
+	@Test
+	public void testRouteSequence() {
+		BehaviourTree tree = new BehaviourTree();
+		Function<BtNode, Long> hash = n -> SimilarityMetrics.exactActionHash(n);
+		tree.addSequenceToTrie(seq(1, 2, 3), hash);
+		tree.addSequenceToTrie(seq(1, 2, 4), hash);
+
+		assertEquals(3, tree.routeSequence(seq(1, 2, 3), hash));
+		// Stops at the selector after 2, where the rest is added
+		assertEquals(2, tree.routeSequence(seq(1, 2, 5, 6), hash));
+		assertEquals(0, tree.routeSequence(seq(9), hash));
+		// Goes past the end of the branch for 3, which is extended
+		assertEquals(3, tree.routeSequence(seq(1, 2, 3, 7), hash));
+
+		BtNode root = tree.getRoot();
+		assertEquals(2, root.getChildren().size());
+		assertEquals(1, count(root, branch(root, 9)));
+		BtNode one = branch(root, 1);
+		assertEquals(5, count(root, one));
+		assertEquals(5, numActions(one.getChildren().get(0)));
+		assertEquals(5, numActions(one.getChildren().get(1)));
+		BtNode afterTwo = one.getChildren().get(2);
+		assertEquals(3, afterTwo.getChildren().size());
+		assertEquals(1, count(afterTwo, branch(afterTwo, 4)));
+		BtNode five = branch(afterTwo, 5);
+		assertEquals(1, count(afterTwo, five));
+		assertEquals(2, five.getChildren().size());
+		BtNode three = branch(afterTwo, 3);
+		assertEquals(3, count(afterTwo, three));
+		assertEquals(3, numActions(three.getChildren().get(0)));
+		BtNode afterThree = three.getChildren().get(1);
+		assertEquals(1, count(afterThree, branch(afterThree, 7)));
+		assertEquals(nextActionId, countActions(root));
+	}
+}
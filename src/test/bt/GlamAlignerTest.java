@@ -0,0 +1,111 @@
+package bt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import util.LogManager;
+import bt.GlamResult.Alignment;
+
+public class GlamAlignerTest {
+	static {
+		LogManager.initialise("GlamAlignerTest");
+	}
+
+	private static final char[] ALPHABET = "abcdefghijklmnopqrst?".toCharArray();
+	private static final String MOTIF = "hello";
+
+	@Test
+	public void testParse() {
+		GlamAligner.Params p = GlamAligner.Params.parse(
+				"-a 2 -b 20 -w 15 -D 500000 -E 2000000 -I 10000 -J 40000000 -r 3 -n 50000");
+		assertEquals(2, p.minColumns);
+		assertEquals(20, p.maxColumns);
+		assertEquals(15, p.initialColumns);
+		assertEquals(500000, p.deletePseudocount, 0);
+		assertEquals(40000000, p.noInsertPseudocount, 0);
+		assertEquals(3, p.runs);
+		assertEquals(50000, p.iterations);
+	}
+
+	@Test
+	public void testFindsPlantedMotif() {
+		Random random = new Random(0);
+		String[] sequences = new String[30];
+		for (int s = 0; s < sequences.length; s++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 20; i++) {
+				sb.append(ALPHABET[random.nextInt(ALPHABET.length - 1)]);
+			}
+			sb.insert(random.nextInt(sb.length()), MOTIF);
+			sequences[s] = sb.toString();
+		}
+		GlamResult gr = new GlamAligner(GlamAligner.Params.parse("-a 2 -b 10 -w 3 -r 2 -n 2000"))
+				.align(sequences, ALPHABET);
+
+		int found = 0;
+		for (int s = 0; s < sequences.length; s++) {
+			Alignment a = gr.getAlignment(s);
+			if (a == null) {
+				continue;
+			}
+			// The aligned residues must be the sequence between start and end, in order
+			String residues = a.align.replace(".", "");
+			assertEquals(sequences[s].substring(a.start, a.end + 1), residues);
+			if (residues.contains(MOTIF)) {
+				found++;
+			}
+		}
+		assertTrue("Found motif in " + found, found >= 25);
+		assertTrue(gr.consensus, gr.consensus.replace(" ", "").contains(MOTIF));
+	}
+
+	@Test
+	public void testFrequenciesSkipUnknownChars() {
+		// Z isn't in the alphabet, so is neither scored nor counted
+		String[] sequences = {"abZhelloZ", "hZellocd", "ehelloZZ", "fghelZlo", "helloabc"};
+		GlamResult gr = new GlamAligner(GlamAligner.Params.parse("-a 2 -b 6 -w 5 -r 2 -n 500"))
+				.align(sequences, ALPHABET);
+
+		// The frequencies are the same as those counted from the alignments
+		int[][] charFreqs = gr.calcCharFreqs(Double.NEGATIVE_INFINITY);
+		for (int pos = 0, column = 0; pos < gr.keyPos.length; pos++) {
+			if (gr.keyPos[pos]) {
+				assertArrayEquals(charFreqs[pos], gr.frequencies[column++]);
+			}
+		}
+	}
+
+	@Test
+	public void testParallelColumnsSameResult() {
+		// Long enough that the match weights are split between threads
+		Random random = new Random(1);
+		String[] sequences = new String[8];
+		for (int s = 0; s < sequences.length; s++) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 2500; i++) {
+				sb.append(ALPHABET[random.nextInt(ALPHABET.length - 1)]);
+			}
+			sb.insert(random.nextInt(sb.length()), MOTIF);
+			sequences[s] = sb.toString();
+		}
+		String args = "-a 2 -b 8 -w 8 -r 2 -n 50";
+		GlamAligner.Params params = GlamAligner.Params.parse(args);
+		GlamResult sequential = new GlamAligner(params).align(sequences, ALPHABET);
+		params = GlamAligner.Params.parse(args);
+		params.parallelColumns = true;
+		params.threads = 4;
+		GlamResult parallel = new GlamAligner(params).align(sequences, ALPHABET);
+
+		assertEquals(sequential.scoreLine, parallel.scoreLine);
+		for (int s = 0; s < sequences.length; s++) {
+			Alignment a = sequential.getAlignment(s);
+			Alignment b = parallel.getAlignment(s);
+			assertEquals(a == null ? null : a.align, b == null ? null : b.align);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package bt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import util.LogManager;
+import bt.GlamResult.Alignment;
+
+public class GlamResultParseTest {
+	static {
+		LogManager.initialise("GlamResultParseTest");
+	}
+
+	private static final char[] ALPHABET = "abcd?".toCharArray();
+
+	private static final String[] GLAM_TXT = {
+		"GLAM2",
+		"",
+		"Sequences: 3",
+		"",
+		"Score: 12.3  Columns: 3  Sequences: 3",
+		"",
+		"         **.*",
+		"seq0       1 ab.c   3 + 10.5",
+		"seq1       2 abbc   5 + 9.",
+		"seq2       1 a..c   2 + 3.2",
+		"",
+		"         ab c",
+		"",
+		" a  b  c  d Del Ins Score",
+		" 3  0  0  0   0        1.2e+01",
+		"                 1     2.0",
+		" 0  2  0  0   1        5.0",
+		" 0  0  3  0   0        3.3e+00",
+	};
+
+	private static GlamResult parse(String... extraLines) throws IOException {
+		File file = File.createTempFile("glam2", ".txt");
+		file.deleteOnExit();
+		String[] lines = Arrays.copyOf(GLAM_TXT, GLAM_TXT.length + extraLines.length);
+		System.arraycopy(extraLines, 0, lines, GLAM_TXT.length, extraLines.length);
+		Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.ISO_8859_1);
+		return new GlamResult(file, ALPHABET, ALPHABET.length - 1);
+	}
+
+	@Test
+	public void testParse() throws IOException {
+		GlamResult gr = parse("", "Score: 11  Columns: 3");
+		assertEquals("Score: 12.3  Columns: 3  Sequences: 3", gr.scoreLine);
+		assertEquals("ab c", gr.consensus);
+		assertEquals(4, gr.getNumAlignedPos());
+		assertTrue(gr.keyPos[0] && gr.keyPos[1] && !gr.keyPos[2] && gr.keyPos[3]);
+
+		Alignment a = gr.getAlignment(1);
+		assertEquals("seq1", a.seqName);
+		assertEquals(1, a.start);
+		assertEquals("abbc", a.align);
+		assertEquals(4, a.end);
+		assertEquals(9, a.score, 0);
+		assertEquals("a..c", gr.getAlignment(2).align);
+		assertNull(gr.getAlignment(3));
+
+		// The Ins line is skipped, and the wildcard has no column
+		assertEquals(3, gr.frequencies.length);
+		assertArrayEquals(new int[] {3, 0, 0, 0, 0}, gr.frequencies[0]);
+		assertArrayEquals(new int[] {0, 2, 0, 0, 0}, gr.frequencies[1]);
+		assertArrayEquals(new int[] {0, 0, 3, 0, 0}, gr.frequencies[2]);
+
+		int[][] charFreqs = gr.calcCharFreqs(0);
+		assertArrayEquals(new int[] {0, 1, 0, 0, 0}, charFreqs[2]);
+		assertArrayEquals(new int[] {0, 0, 3, 0, 0}, charFreqs[3]);
+	}
+
+	@Test
+	public void testOneTokenLineEndsFrequencies() throws IOException {
+		GlamResult gr = parse("end", " 0  0  0  3   0        3.3e+00");
+		assertEquals(3, gr.frequencies.length);
+	}
+}
@@ -0,0 +1,125 @@
+package scdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import scdb.ReplayCache.Section;
+import scdb.ReplayCache.SectionWriter;
+import util.UnitAttributes.UnitAttribute;
+
+public class PlayerReplayViewTest {
+
+	private static final int EXISTS = UnitAttribute.Exists.getId();
+	private static final int HP = UnitAttribute.Hit_Points.getId();
+
+	/** Units 100 and 200. 100 exists 10-50, 200 exists from 20. One unit 300 visible 15-25. */
+	private static PlayerReplayView makeView() {
+		SectionWriter units = new SectionWriter(ReplayCache.UNIT_COLS, 2);
+		units.putLong(0, 0, 100);
+		units.putInt(1, 0, 0);
+		units.putLong(0, 1, 200);
+		units.putInt(1, 1, 0);
+
+		// Sorted by unit index, attribute, time
+		int[][] attrRows = {{0, HP, 10, 40}, {0, EXISTS, 10, 1}, {0, EXISTS, 50, 0},
+				{1, EXISTS, 20, 1}};
+		SectionWriter attributes = new SectionWriter(ReplayCache.ATTRIBUTE_COLS, attrRows.length);
+		for (int r = 0; r < attrRows.length; r++) {
+			for (int c = 0; c < 4; c++) {
+				attributes.putInt(c, r, attrRows[r][c]);
+			}
+		}
+
+		SectionWriter visibility = new SectionWriter(ReplayCache.VISIBILITY_COLS, 3);
+		int[][] visRows = {{5, 0}, {15, 1}, {25, 0}};
+		for (int r = 0; r < visRows.length; r++) {
+			visibility.putLong(0, r, 300);
+			visibility.putInt(1, r, visRows[r][0]);
+			visibility.putByte(2, r, visRows[r][1]);
+		}
+		SectionWriter firstSeen = new SectionWriter(ReplayCache.FIRST_SEEN_COLS, 1);
+		firstSeen.putLong(0, 0, 300);
+		firstSeen.putInt(1, 0, 15);
+
+		SectionWriter resources = new SectionWriter(ReplayCache.RESOURCE_COLS, 2);
+		resources.putInt(0, 0, 0);
+		resources.putInt(1, 0, 50);
+		resources.putInt(0, 1, 30);
+		resources.putInt(1, 1, 75);
+		resources.putInt(2, 1, 8);
+
+		SectionWriter[] all = {units, attributes, visibility, firstSeen, resources};
+		int size = 0;
+		for (SectionWriter s : all) {
+			size += s.array().length;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		long[] offsets = new long[all.length];
+		for (int i = 0; i < all.length; i++) {
+			offsets[i] = buf.position();
+			buf.put(all[i].array());
+		}
+		PlayerReplay p = new PlayerReplay(1, "Player", true, 0, 1, 1);
+		return new PlayerReplayView(p, new Section(buf, offsets[0], ReplayCache.UNIT_COLS),
+				new Section(buf, offsets[1], ReplayCache.ATTRIBUTE_COLS),
+				new Section(buf, offsets[2], ReplayCache.VISIBILITY_COLS),
+				new Section(buf, offsets[3], ReplayCache.FIRST_SEEN_COLS),
+				new Section(buf, offsets[4], ReplayCache.RESOURCE_COLS));
+	}
+
+	@Test
+	public void testAttributes() {
+		PlayerReplayView v = makeView();
+		assertEquals(1, v.unitIndex(200));
+		assertEquals(-1, v.unitIndex(150));
+		assertFalse(v.isExisting(0, 9));
+		assertTrue(v.isExisting(0, 10));
+		assertFalse(v.isExisting(0, 50));
+		assertEquals(40, v.getAttribute(0, 1000, UnitAttribute.Hit_Points));
+		assertEquals(0, v.getAttribute(1, 1000, UnitAttribute.Hit_Points));
+		assertEquals(0, v.getUnitsExisting(5).size());
+		assertEquals(2, v.getUnitsExisting(30).size());
+		assertEquals(200, v.getUnitsExisting(60).get(0).unitIdDb);
+		assertTrue(v.getUnit(1).isExisting(20));
+		assertEquals(200, v.getUnitId(1));
+		assertEquals(0, v.getUnitTypeId(1));
+	}
+
+	@Test
+	public void testVisibility() {
+		PlayerReplayView v = makeView();
+		assertFalse(v.canSee(300, 14));
+		assertTrue(v.canSee(300, 15));
+		assertFalse(v.canSee(300, 25));
+		assertFalse(v.canSee(100, 20));
+		assertFalse(v.hasSeen(300, 14));
+		assertTrue(v.hasSeen(300, 100));
+		assertFalse(v.hasSeen(200, 100));
+	}
+
+	@Test
+	public void testResources() throws SQLException {
+		PlayerReplayView v = makeView();
+		assertEquals(50, v.getResources(29).minerals);
+		assertEquals(75, v.getResources(30).minerals);
+		assertEquals(75, v.getResources(Integer.MAX_VALUE).minerals);
+		assertEquals(50, v.getMinerals(29));
+		assertEquals(75, v.getMinerals(30));
+		assertEquals(0, v.getGas(29));
+		assertEquals(8, v.getGas(30));
+		assertEquals(v.getResources(30).supply, v.getSupply(30));
+		try {
+			v.getMinerals(-1);
+			fail("No resources before frame 0");
+		} catch (SQLException e) {
+			// expected
+		}
+	}
+}
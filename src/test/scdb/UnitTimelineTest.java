@@ -0,0 +1,67 @@
+package scdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import util.UnitAttributes.UnitAttribute;
+
+public class UnitTimelineTest {
+	
+	@Test
+	public void testGetAttribute() {
+		UnitTimeline t = new UnitTimeline.Builder()
+				.add(UnitAttribute.Exists.getId(), 10, 1)
+				.add(UnitAttribute.Exists.getId(), 50, 0)
+				.add(UnitAttribute.Hit_Points.getId(), 10, 100)
+				.add(UnitAttribute.Hit_Points.getId(), 30, 80)
+				.build();
+		assertFalse(t.isExisting(9));
+		assertTrue(t.isExisting(10));
+		assertTrue(t.isExisting(49));
+		assertFalse(t.isExisting(50));
+		assertEquals(0, t.getAttribute(5, UnitAttribute.Hit_Points));
+		assertEquals(100, t.getAttribute(29, UnitAttribute.Hit_Points));
+		assertEquals(80, t.getAttribute(1000, UnitAttribute.Hit_Points));
+		assertEquals(0, t.getAttribute(1000, UnitAttribute.Shields));
+		assertEquals(80, t.getAttributes(30).attributes[UnitAttribute.Hit_Points.getId()]);
+	}
+	
+	@Test
+	public void testUnsortedInput() {
+		UnitTimeline t = new UnitTimeline.Builder()
+				.add(UnitAttribute.Energy.getId(), 40, 4)
+				.add(UnitAttribute.Energy.getId(), 20, 2)
+				.add(UnitAttribute.Energy.getId(), 30, 3)
+				.add(UnitAttribute.Energy.getId(), 10, 1)
+				.build();
+		for (int i = 0; i < t.numChanges(UnitAttribute.Energy); i++) {
+			assertEquals((i + 1) * 10, t.getChangeTime(UnitAttribute.Energy, i));
+			assertEquals(i + 1, t.getChangeValue(UnitAttribute.Energy, i));
+		}
+		assertEquals(3, t.getAttribute(35, UnitAttribute.Energy));
+	}
+	
+	@Test
+	public void testChangesBetween() {
+		UnitTimeline.Builder b = new UnitTimeline.Builder();
+		for (int frame = 0; frame < 100; frame += 10) {
+			b.add(UnitAttribute.Pos_X.getId(), frame, frame * 2);
+		}
+		UnitTimeline t = b.build();
+		int count = 0;
+		int sum = 0;
+		// Changes after frame 20 up to and including frame 50: 30, 40, 50
+		for (UnitTimeline.Changes c = t.changesBetween(UnitAttribute.Pos_X, 20, 50); c.next(); ) {
+			count++;
+			sum += c.time();
+			assertEquals(c.time() * 2, c.value());
+		}
+		assertEquals(3, count);
+		assertEquals(120, sum);
+		assertFalse(t.changesBetween(UnitAttribute.Pos_X, 50, 20).next());
+		assertFalse(t.changesBetween(UnitAttribute.Pos_Y, 0, 100).next());
+	}
+}